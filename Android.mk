@@ -42,3 +42,18 @@ LOCAL_AAPT_FLAGS := --auto-add-overlay
 LOCAL_AAPT_FLAGS += --extra-packages com.google.android.gms
 
 include $(BUILD_PACKAGE)
+
+# The wizard logic that has no Android dependencies, for host side
+# benchmarks and tools
+include $(CLEAR_VARS)
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src/com/mokee/setupwizard/core) \
+    src/com/mokee/setupwizard/util/CaptivePortalProber.java \
+    src/com/mokee/setupwizard/util/ProbeTransport.java
+
+LOCAL_MODULE := MoKeeSetupWizardCore
+LOCAL_MODULE_TAGS := optional
+
+include $(BUILD_HOST_JAVA_LIBRARY)
+
+include $(call all-makefiles-under,$(LOCAL_PATH))
@@ -0,0 +1,38 @@
+# Copyright (C) 2015 The MoKee OpenSource Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+
+# Host side benchmarks over MoKeeSetupWizardCore. Build with
+# "mmm packages/apps/MoKeeSetupWizard/benchmark", then run the captive portal
+# prober against local stub servers with
+# "java -jar $ANDROID_HOST_OUT/framework/MoKeeSetupWizardPortalBenchmark.jar"
+# and the page graph, page flow table and time zone list with
+# "java -cp $ANDROID_HOST_OUT/framework/MoKeeSetupWizardPortalBenchmark.jar \
+#     com.mokee.setupwizard.benchmark.LogicBenchmark". The same jar holds
+# com.mokee.setupwizard.benchmark.WizardSimulator, which replays random
+# device event streams against the page state machine and checks it.
+
+LOCAL_PATH := $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+
+LOCAL_STATIC_JAVA_LIBRARIES := MoKeeSetupWizardCore
+
+LOCAL_MODULE := MoKeeSetupWizardPortalBenchmark
+LOCAL_MODULE_TAGS := optional
+LOCAL_JAR_MANIFEST := manifest.txt
+
+include $(BUILD_HOST_JAVA_LIBRARY)
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.benchmark;
+
+import com.mokee.setupwizard.benchmark.StubPortalServer.Behavior;
+import com.mokee.setupwizard.util.CaptivePortalProber;
+import com.mokee.setupwizard.util.ProbeTransport;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link CaptivePortalProber} against local stub servers and reports
+ * the time to a decision for each scenario. No network needed.
+ *
+ * Usage: CaptivePortalBenchmark [--iterations N] [--latency MS]
+ *         [--socket-timeout MS] [--deadline MS] [scenario...]
+ */
+public class CaptivePortalBenchmark {
+
+    // Same as the values CaptivePortalDetector uses on device
+    private static final int DEFAULT_SOCKET_TIMEOUT_MS = 10000;
+    private static final int DEFAULT_DEADLINE_MS = 10000;
+
+    private static final String[] RESULT_NAMES = { "inconclusive", "no-portal", "portal" };
+
+    private static class Scenario {
+        private final String mName;
+        // One stub per probe, in the order the device lists them:
+        // http, https, then fallbacks.
+        private final Behavior[] mBehaviors;
+        private final int mExpected;
+
+        private Scenario(String name, int expected, Behavior... behaviors) {
+            mName = name;
+            mExpected = expected;
+            mBehaviors = behaviors;
+        }
+    }
+
+    private static final Scenario[] SCENARIOS = {
+        new Scenario("open", CaptivePortalProber.RESULT_NO_PORTAL,
+                Behavior.NO_CONTENT, Behavior.NO_CONTENT),
+        new Scenario("portal-200", CaptivePortalProber.RESULT_PORTAL,
+                Behavior.OK_WITH_BODY, Behavior.RESET),
+        new Scenario("portal-302", CaptivePortalProber.RESULT_PORTAL,
+                Behavior.REDIRECT, Behavior.BLACK_HOLE),
+        new Scenario("slow-headers", CaptivePortalProber.RESULT_NO_PORTAL,
+                Behavior.SLOW_HEADERS, Behavior.SLOW_HEADERS),
+        new Scenario("slow-primary", CaptivePortalProber.RESULT_NO_PORTAL,
+                Behavior.SLOW_HEADERS, Behavior.BLACK_HOLE, Behavior.NO_CONTENT),
+        new Scenario("reset", CaptivePortalProber.RESULT_INCONCLUSIVE,
+                Behavior.RESET, Behavior.RESET),
+        new Scenario("black-hole", CaptivePortalProber.RESULT_INCONCLUSIVE,
+                Behavior.BLACK_HOLE, Behavior.BLACK_HOLE),
+        new Scenario("lossy-fallback", CaptivePortalProber.RESULT_NO_PORTAL,
+                Behavior.BLACK_HOLE, Behavior.RESET, Behavior.NO_CONTENT),
+        new Scenario("failing-fallback", CaptivePortalProber.RESULT_NO_PORTAL,
+                Behavior.SLOW_HEADERS, Behavior.BLACK_HOLE, Behavior.NOT_FOUND),
+    };
+
+    public static void main(String[] args) throws Exception {
+        int iterations = 20;
+        int latencyMs = 0;
+        int socketTimeoutMs = DEFAULT_SOCKET_TIMEOUT_MS;
+        int deadlineMs = DEFAULT_DEADLINE_MS;
+        List<String> selected = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--iterations".equals(args[i])) {
+                iterations = Integer.parseInt(args[++i]);
+            } else if ("--latency".equals(args[i])) {
+                latencyMs = Integer.parseInt(args[++i]);
+            } else if ("--socket-timeout".equals(args[i])) {
+                socketTimeoutMs = Integer.parseInt(args[++i]);
+            } else if ("--deadline".equals(args[i])) {
+                deadlineMs = Integer.parseInt(args[++i]);
+            } else {
+                selected.add(args[i]);
+            }
+        }
+
+        System.out.println("iterations=" + iterations + " latency=" + latencyMs
+                + "ms socket-timeout=" + socketTimeoutMs + "ms deadline=" + deadlineMs + "ms");
+        System.out.println(String.format("%-16s %8s %8s %8s %8s  %s",
+                "scenario", "p50", "p90", "p99", "max", "verdicts"));
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        boolean allExpected = true;
+        try {
+            for (Scenario scenario : SCENARIOS) {
+                if (!selected.isEmpty() && !selected.contains(scenario.mName)) {
+                    continue;
+                }
+                allExpected &= run(scenario, executor, iterations, latencyMs,
+                        socketTimeoutMs, deadlineMs);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        System.exit(allExpected ? 0 : 1);
+    }
+
+    private static boolean run(Scenario scenario, ExecutorService executor, int iterations,
+            int latencyMs, int socketTimeoutMs, int deadlineMs) throws IOException {
+        final List<URL> urls = new ArrayList<URL>();
+        final Map<URL, URL> routes = new HashMap<URL, URL>();
+        final List<StubPortalServer> servers = new ArrayList<StubPortalServer>();
+        try {
+            for (int i = 0; i < scenario.mBehaviors.length; i++) {
+                StubPortalServer server = new StubPortalServer(scenario.mBehaviors[i], latencyMs);
+                servers.add(server);
+                // Keep the protocol the prober sees, only the socket is local
+                String protocol = i == 1 ? "https" : "http";
+                URL url = new URL(protocol + "://probe" + i + ".invalid/generate_204");
+                urls.add(url);
+                routes.put(url, new URL("http://127.0.0.1:" + server.getPort()
+                        + "/generate_204"));
+            }
+            ProbeTransport transport = new ProbeTransport() {
+                @Override
+                public HttpURLConnection openConnection(URL url) throws IOException {
+                    return (HttpURLConnection) routes.get(url).openConnection();
+                }
+            };
+            CaptivePortalProber prober =
+                    new CaptivePortalProber(executor, transport, socketTimeoutMs, deadlineMs);
+
+            long[] timesMs = new long[iterations];
+            int[] verdicts = new int[RESULT_NAMES.length];
+            for (int i = 0; i < iterations; i++) {
+                final long start = System.nanoTime();
+                final int result = prober.race(urls);
+                timesMs[i] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                verdicts[result]++;
+            }
+            Arrays.sort(timesMs);
+            StringBuilder verdictText = new StringBuilder();
+            for (int i = 0; i < verdicts.length; i++) {
+                if (verdicts[i] > 0) {
+                    if (verdictText.length() > 0) verdictText.append(' ');
+                    verdictText.append(RESULT_NAMES[i]).append('=').append(verdicts[i]);
+                }
+            }
+            final boolean expected = verdicts[scenario.mExpected] == iterations;
+            if (!expected) {
+                verdictText.append("  (expected ").append(RESULT_NAMES[scenario.mExpected])
+                        .append(')');
+            }
+            System.out.println(String.format("%-16s %6dms %6dms %6dms %6dms  %s",
+                    scenario.mName, percentile(timesMs, 50), percentile(timesMs, 90),
+                    percentile(timesMs, 99), timesMs[timesMs.length - 1], verdictText));
+            return expected;
+        } finally {
+            for (StubPortalServer server : servers) {
+                server.close();
+            }
+        }
+    }
+
+    // Nearest rank on sorted input
+    private static long percentile(long[] sorted, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.benchmark;
+
+import com.mokee.setupwizard.core.NavigationNode;
+import com.mokee.setupwizard.core.PageFlow;
+import com.mokee.setupwizard.core.PageNavigator;
+import com.mokee.setupwizard.core.TimeZoneListBuilder;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Times the page graph walk, the page flow table and the time zone list
+ * build from MoKeeSetupWizardCore. Each benchmark is warmed up, then run
+ * in batches and reported as nanoseconds per operation across batches.
+ *
+ * Usage: LogicBenchmark [--batches N] [--pages N] [--timezones FILE]
+ *         [--flow FILE] [benchmark...]
+ * The time zone list defaults to res/xml/timezones.xml when run from the
+ * project root, and to every zone the JVM knows otherwise. The page flow
+ * defaults to res/xml/page_flow.xml; it is first checked against the
+ * expected rules for every state, and skipped when there is no file.
+ */
+public class LogicBenchmark {
+
+    private static final int WARMUP_BATCHES = 20;
+
+    // Keeps results alive so the JIT cannot drop the work
+    private static long sSink;
+
+    private interface Op {
+        void run();
+    }
+
+    private static class FakePage implements NavigationNode {
+        private final String mKey;
+        private boolean mHidden;
+
+        private FakePage(String key) {
+            mKey = key;
+        }
+
+        @Override
+        public String getKey() {
+            return mKey;
+        }
+
+        @Override
+        public boolean isHidden() {
+            return mHidden;
+        }
+    }
+
+    private static class FakeState implements PageFlow.DeviceState {
+        private int mBits;
+
+        @Override
+        public boolean isSimInserted() {
+            return (mBits & 1) != 0;
+        }
+
+        @Override
+        public boolean allSimsInserted() {
+            return (mBits & 2) != 0;
+        }
+
+        @Override
+        public boolean isMobileDataEnabled() {
+            return (mBits & 4) != 0;
+        }
+
+        @Override
+        public boolean isNetworkConnected() {
+            return (mBits & 8) != 0;
+        }
+
+        @Override
+        public boolean isTimeZoneSet() {
+            return (mBits & 16) != 0;
+        }
+
+        @Override
+        public boolean isTimeSet() {
+            return (mBits & 32) != 0;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int batches = 50;
+        int pageCount = 15;
+        String timezonesPath = "res/xml/timezones.xml";
+        String flowPath = PageFlowXml.DEFAULT_PATH;
+        List<String> selected = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--batches".equals(args[i])) {
+                batches = Integer.parseInt(args[++i]);
+            } else if ("--pages".equals(args[i])) {
+                pageCount = Integer.parseInt(args[++i]);
+            } else if ("--timezones".equals(args[i])) {
+                timezonesPath = args[++i];
+            } else if ("--flow".equals(args[i])) {
+                flowPath = args[++i];
+            } else {
+                selected.add(args[i]);
+            }
+        }
+
+        final List<String[]> zones = loadZones(new File(timezonesPath));
+        System.out.println("batches=" + batches + " pages=" + pageCount
+                + " timezones=" + zones.size());
+        System.out.println(String.format("%-20s %10s %10s %10s %10s",
+                "benchmark", "p50 ns/op", "p90", "p99", "max"));
+
+        final ArrayList<FakePage> pages = new ArrayList<FakePage>();
+        for (int i = 0; i < pageCount; i++) {
+            pages.add(new FakePage("Page" + i));
+        }
+        final Random random = new Random(42);
+        final PageNavigator<FakePage> navigator = new PageNavigator<FakePage>(pages);
+
+        if (selected.isEmpty() || selected.contains("walk")) {
+            // Forward to the end and back again with a third of the pages hidden
+            measure("walk", batches, 1000, new Op() {
+                @Override
+                public void run() {
+                    for (FakePage page : pages) {
+                        page.mHidden = random.nextInt(3) == 0;
+                    }
+                    while (navigator.advanceToNextUnhidden()) {
+                        sSink += navigator.getCurrentIndex();
+                    }
+                    while (navigator.advanceToPreviousUnhidden()) {
+                        sSink += navigator.getCurrentIndex();
+                    }
+                }
+            });
+        }
+        if (selected.isEmpty() || selected.contains("restore")) {
+            measure("restore", batches, 10000, new Op() {
+                @Override
+                public void run() {
+                    navigator.restore(pages.get(random.nextInt(pages.size())).getKey());
+                    sSink += navigator.getCurrentIndex();
+                }
+            });
+        }
+        final File flowFile = new File(flowPath);
+        if ((selected.isEmpty() || selected.contains("flow")) && flowFile.isFile()) {
+            final PageFlow flow = PageFlowXml.load(flowFile);
+            checkFlow(flow);
+            final boolean[] hidden = new boolean[flow.size()];
+            measure("flow", batches, 10000, new Op() {
+                @Override
+                public void run() {
+                    final int state = random.nextInt(128);
+                    for (int i = 0; i < hidden.length; i++) {
+                        hidden[i] = flow.isHidden(i, state);
+                    }
+                    sSink += hidden[state % hidden.length] ? 1 : 0;
+                }
+            });
+        }
+        if (selected.isEmpty() || selected.contains("timezones")) {
+            measure("timezones", batches, 10, new Op() {
+                @Override
+                public void run() {
+                    TimeZoneListBuilder builder =
+                            new TimeZoneListBuilder(System.currentTimeMillis());
+                    for (String[] zone : zones) {
+                        builder.add(zone[0], zone[1]);
+                    }
+                    List<TimeZoneListBuilder.Entry> entries = builder.build(false);
+                    sSink += TimeZoneListBuilder.indexOf(entries, TimeZone.getDefault().getID());
+                }
+            });
+        }
+        if (sSink == 42) {
+            System.out.println();
+        }
+    }
+
+    private static void measure(String name, int batches, int opsPerBatch, Op op) {
+        for (int i = 0; i < WARMUP_BATCHES; i++) {
+            runBatch(opsPerBatch, op);
+        }
+        long[] nsPerOp = new long[batches];
+        for (int i = 0; i < batches; i++) {
+            nsPerOp[i] = runBatch(opsPerBatch, op) / opsPerBatch;
+        }
+        Arrays.sort(nsPerOp);
+        System.out.println(String.format("%-20s %10d %10d %10d %10d", name,
+                percentile(nsPerOp, 50), percentile(nsPerOp, 90), percentile(nsPerOp, 99),
+                nsPerOp[nsPerOp.length - 1]));
+    }
+
+    private static long runBatch(int ops, Op op) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            op.run();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static List<String[]> loadZones(File file) throws Exception {
+        final List<String[]> zones = new ArrayList<String[]>();
+        if (file.isFile()) {
+            SAXParserFactory.newInstance().newSAXParser().parse(file, new DefaultHandler() {
+                private String mId;
+                private StringBuilder mName;
+
+                @Override
+                public void startElement(String uri, String localName, String qName,
+                        Attributes attributes) {
+                    if ("timezone".equals(qName)) {
+                        mId = attributes.getValue("id");
+                        mName = new StringBuilder();
+                    }
+                }
+
+                @Override
+                public void characters(char[] ch, int start, int length) {
+                    if (mName != null) {
+                        mName.append(ch, start, length);
+                    }
+                }
+
+                @Override
+                public void endElement(String uri, String localName, String qName) {
+                    if ("timezone".equals(qName)) {
+                        zones.add(new String[] { mId, mName.toString() });
+                        mName = null;
+                    }
+                }
+            });
+        } else {
+            for (String id : TimeZone.getAvailableIDs()) {
+                zones.add(new String[] { id, id });
+            }
+        }
+        return zones;
+    }
+
+    /**
+     * Fails unless the flow hides each page in exactly the states the
+     * wizard hid it in before page_flow.xml, as spelled out here.
+     */
+    private static void checkFlow(PageFlow flow) {
+        final FakeState state = new FakeState();
+        for (int bits = 0; bits < 128; bits++) {
+            state.mBits = bits & 63;
+            final boolean canSkip = (bits & 64) != 0;
+            final int flowState = PageFlow.readState(state, canSkip);
+            for (int i = 0; i < flow.size(); i++) {
+                final String name = flow.getClassName(i);
+                final boolean expected;
+                if (name.endsWith(".SimCardMissingPage")) {
+                    expected = state.isSimInserted();
+                } else if (name.endsWith(".ChooseDataSimPage")) {
+                    expected = !state.allSimsInserted();
+                } else if (name.endsWith(".MobileDataPage")) {
+                    expected = !state.isSimInserted() || state.isMobileDataEnabled();
+                } else if (name.endsWith(".GmsAccountPage")) {
+                    expected = !state.isNetworkConnected() && canSkip;
+                } else if (name.endsWith(".DateTimePage")) {
+                    expected = state.isTimeZoneSet() && state.isTimeSet();
+                } else {
+                    expected = false;
+                }
+                if (flow.isHidden(i, flowState) != expected) {
+                    throw new IllegalStateException(name
+                            + " disagrees with the expected rules in state "
+                            + Integer.toBinaryString(bits));
+                }
+            }
+        }
+    }
+
+    // Nearest rank on sorted input
+    private static long percentile(long[] sorted, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.benchmark;
+
+import com.mokee.setupwizard.core.PageFlow;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.File;
+
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Reads res/xml/page_flow.xml on the host the way MKSetupWizardData reads
+ * it on the device.
+ */
+class PageFlowXml {
+
+    static final String DEFAULT_PATH = "res/xml/page_flow.xml";
+
+    private PageFlowXml() {}
+
+    static PageFlow load(File file) throws Exception {
+        final PageFlow.Builder builder = new PageFlow.Builder();
+        SAXParserFactory.newInstance().newSAXParser().parse(file, new DefaultHandler() {
+            @Override
+            public void startElement(String uri, String localName, String qName,
+                    Attributes attributes) {
+                if ("page".equals(qName)) {
+                    builder.addPage(attributes.getValue("class"),
+                            PageFlow.parseCapabilities(attributes.getValue("requires")),
+                            "true".equals(attributes.getValue("skip-when-hidden")));
+                } else if ("hidden-when".equals(qName)) {
+                    builder.addHiddenWhen(PageFlow.parseState(attributes.getValue("set")),
+                            PageFlow.parseState(attributes.getValue("clear")));
+                }
+            }
+        });
+        return builder.build();
+    }
+
+    /**
+     * The page key, which is the simple name of the page class.
+     */
+    static String getKey(PageFlow flow, int index) {
+        final String className = flow.getClassName(index);
+        return className.substring(className.lastIndexOf('.') + 1);
+    }
+}
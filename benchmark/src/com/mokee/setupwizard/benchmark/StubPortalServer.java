@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal HTTP server on the loopback interface that answers every request
+ * the way a real or captive network might.
+ */
+public class StubPortalServer {
+
+    public enum Behavior {
+        // The real generate_204
+        NO_CONTENT,
+        // A portal serving its login page in place of the real response
+        OK_WITH_BODY,
+        // A portal redirecting to its login page
+        REDIRECT,
+        // Status line right away, the rest of the headers after a long stall
+        SLOW_HEADERS,
+        // A broken server or middlebox failing the request right away
+        NOT_FOUND,
+        // Connection reset as soon as the request arrives
+        RESET,
+        // Accepts the connection and never answers
+        BLACK_HOLE
+    }
+
+    private static final int SLOW_HEADERS_STALL_MS = 3000;
+
+    private final Behavior mBehavior;
+    private final int mLatencyMs;
+    private final ServerSocket mServerSocket;
+    private final List<Socket> mSockets = new ArrayList<Socket>();
+    private final Thread mAcceptThread;
+
+    private volatile boolean mClosed;
+
+    public StubPortalServer(Behavior behavior, int latencyMs) throws IOException {
+        mBehavior = behavior;
+        mLatencyMs = latencyMs;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        mAcceptThread = new Thread("stub-" + behavior) {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        };
+        mAcceptThread.setDaemon(true);
+        mAcceptThread.start();
+    }
+
+    public Behavior getBehavior() {
+        return mBehavior;
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    public void close() throws IOException {
+        mClosed = true;
+        mServerSocket.close();
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                socket.close();
+            }
+            mSockets.clear();
+        }
+    }
+
+    private void acceptLoop() {
+        while (!mClosed) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            synchronized (mSockets) {
+                mSockets.add(socket);
+            }
+            Thread handler = new Thread("stub-" + mBehavior + "-conn") {
+                @Override
+                public void run() {
+                    try {
+                        handle(socket);
+                    } catch (IOException e) {
+                        // The prober gave up on us, nothing to do
+                    } catch (InterruptedException e) {
+                        // Closing
+                    } finally {
+                        synchronized (mSockets) {
+                            mSockets.remove(socket);
+                        }
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // Ignore
+                        }
+                    }
+                }
+            };
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    private void handle(Socket socket) throws IOException, InterruptedException {
+        readRequest(socket.getInputStream());
+        if (mLatencyMs > 0) {
+            Thread.sleep(mLatencyMs);
+        }
+        OutputStream out = socket.getOutputStream();
+        switch (mBehavior) {
+            case NO_CONTENT:
+                write(out, "HTTP/1.1 204 No Content\r\nContent-Length: 0\r\n"
+                        + "Connection: close\r\n\r\n");
+                break;
+            case OK_WITH_BODY:
+                String body = "<html><body>Sign in to continue</body></html>";
+                write(out, "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nContent-Length: "
+                        + body.length() + "\r\nConnection: close\r\n\r\n" + body);
+                break;
+            case REDIRECT:
+                write(out, "HTTP/1.1 302 Found\r\nLocation: http://portal.invalid/login\r\n"
+                        + "Content-Length: 0\r\nConnection: close\r\n\r\n");
+                break;
+            case SLOW_HEADERS:
+                write(out, "HTTP/1.1 204 No Content\r\n");
+                Thread.sleep(SLOW_HEADERS_STALL_MS);
+                write(out, "Content-Length: 0\r\nConnection: close\r\n\r\n");
+                break;
+            case NOT_FOUND:
+                write(out, "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n"
+                        + "Connection: close\r\n\r\n");
+                break;
+            case RESET:
+                socket.setSoLinger(true, 0);
+                break;
+            case BLACK_HOLE:
+                while (!mClosed && !socket.isClosed()) {
+                    Thread.sleep(100);
+                }
+                break;
+        }
+        out.flush();
+    }
+
+    private static void readRequest(InputStream in) throws IOException {
+        // Read up to the blank line ending the request headers
+        int matched = 0;
+        int b;
+        while (matched < 4 && (b = in.read()) != -1) {
+            if ((matched % 2 == 0 && b == '\r') || (matched % 2 == 1 && b == '\n')) {
+                matched++;
+            } else {
+                matched = b == '\r' ? 1 : 0;
+            }
+        }
+    }
+
+    private static void write(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+}
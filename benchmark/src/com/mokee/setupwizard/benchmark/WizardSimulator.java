@@ -0,0 +1,500 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.benchmark;
+
+import com.mokee.setupwizard.core.NavigationNode;
+import com.mokee.setupwizard.core.NavigationQueue;
+import com.mokee.setupwizard.core.PageFlow;
+import com.mokee.setupwizard.core.PageNavigator;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Drives a model of the MKSetupWizardData state machine with random
+ * streams of device events and user input, and checks that it stays
+ * consistent after every event. Navigation and visibility come from
+ * MoKeeSetupWizardCore: pages and their rules are read from the same
+ * res/xml/page_flow.xml into a PageFlow, and navigation requests go
+ * through the same NavigationQueue as AbstractSetupData. The broadcast
+ * handling mirrors MKSetupWizardData and must be kept in step with it.
+ * A page change is only over once a later "loaded" event says the new
+ * page is on screen, and leaving the account page waits for its skip
+ * check, which a later "checked" event completes.
+ *
+ * Checked after each event:
+ *   hidden-current  the current page is hidden by its rules once navigation
+ *                   has settled, for pages marked skip-when-hidden; the
+ *                   others stay on screen when hidden, e.g. DateTimePage
+ *                   hides once the user sets the time on it, and hiding
+ *                   only takes them out of later navigation
+ *   lost-navigation a requested step was neither run, cancelled out,
+ *                   dropped behind a page that handled it, nor still
+ *                   queued; or steps are left queued with nothing to wait for,
+ *                   e.g. a page load that will never finish
+ *   last-page       isLastPage disagrees with there being no next page
+ *
+ * Usage: WizardSimulator [--events N] [--seed N] [--trace N] [--flow FILE]
+ * The page flow defaults to res/xml/page_flow.xml, run from the project root.
+ */
+public class WizardSimulator {
+
+    private static final String[] EVENT_NAMES = {
+            "sim-insert", "sim-remove", "connect", "disconnect", "timezone", "time",
+            "next", "back", "pause", "resume", "loaded", "checked"
+    };
+    private static final int EVENT_SIM_INSERT = 0;
+    private static final int EVENT_SIM_REMOVE = 1;
+    private static final int EVENT_CONNECT = 2;
+    private static final int EVENT_DISCONNECT = 3;
+    private static final int EVENT_TIMEZONE = 4;
+    private static final int EVENT_TIME = 5;
+    private static final int EVENT_NEXT = 6;
+    private static final int EVENT_BACK = 7;
+    private static final int EVENT_PAUSE = 8;
+    private static final int EVENT_RESUME = 9;
+    private static final int EVENT_LOADED = 10;
+    private static final int EVENT_CHECKED = 11;
+
+    private static final String[] INVARIANTS = { "hidden-current", "lost-navigation", "last-page" };
+
+    private static final String GMS_ACCOUNT = "GmsAccountPage";
+    private static final String WELCOME = "WelcomePage";
+    private static final String FINISH = "FinishPage";
+
+    private static class SimPage implements NavigationNode {
+        private final String mKey;
+        private boolean mHidden;
+
+        private SimPage(String key, boolean hidden) {
+            mKey = key;
+            mHidden = hidden;
+        }
+
+        @Override
+        public String getKey() {
+            return mKey;
+        }
+
+        @Override
+        public boolean isHidden() {
+            return mHidden;
+        }
+    }
+
+    /**
+     * One device going through setup, from a random starting state.
+     */
+    private static class Device implements PageFlow.DeviceState {
+
+        private final boolean[] mSims;
+        private final boolean mMobileDataEnabled;
+        private final boolean mCanSkipAccount;
+        private boolean mConnected;
+        private boolean mTimeZoneSet;
+        private boolean mTimeSet;
+
+        // As the page flow bookkeeping of MKSetupWizardData
+        private final PageFlow mFlow;
+        private int mState;
+        private final int[] mFlowIndices;
+        private final boolean[] mFlowHidden;
+
+        private final ArrayList<SimPage> mPages = new ArrayList<SimPage>();
+        private final PageNavigator<SimPage> mNavigator;
+        private NavigationQueue<SimPage> mQueue;
+        private boolean mResumed = true;
+        private boolean mInTransition;
+        // False when the page moved on while loading and will never show
+        private boolean mLoading;
+        private boolean mFinished;
+        private long mRequestedSteps;
+        private long mRunSteps;
+        private int mRequestCount;
+
+        // As the page action bookkeeping of AbstractSetupData
+        private boolean mActionPending;
+        private boolean mActionForward;
+        private SimPage mPassedPage;
+        private boolean mPassedForward;
+
+        private final NavigationQueue.StepHandler<SimPage> mStepHandler =
+                new NavigationQueue.StepHandler<SimPage>() {
+            @Override
+            public boolean isReady(SimPage page, boolean forward) {
+                if (mActionPending) {
+                    return false;
+                }
+                if (page == mPassedPage && forward == mPassedForward) {
+                    mPassedPage = null;
+                    return true;
+                }
+                // As GmsAccountPage checking whether it may be skipped
+                if (forward && page.getKey().equals(GMS_ACCOUNT)) {
+                    mActionPending = true;
+                    mActionForward = true;
+                    return false;
+                }
+                return true;
+            }
+
+            // As FinishPage and WelcomePage, the only pages that handle a step
+            @Override
+            public boolean onStep(SimPage page, boolean forward) {
+                mRunSteps++;
+                if (forward && page.getKey().equals(FINISH)) {
+                    mFinished = true;
+                    return true;
+                }
+                // Back on the first page opens the emergency dialer
+                return !forward && page.getKey().equals(WELCOME);
+            }
+        };
+
+        private Device(Random random, PageFlow flow) {
+            mSims = new boolean[1 + random.nextInt(2)];
+            for (int i = 0; i < mSims.length; i++) {
+                mSims[i] = random.nextBoolean();
+            }
+            mMobileDataEnabled = random.nextBoolean();
+            mCanSkipAccount = random.nextInt(10) != 0;
+            mConnected = random.nextBoolean();
+            // A phone, owner of the device
+            int capabilities = PageFlow.CAP_TELEPHONY | PageFlow.CAP_OWNER;
+            if (mSims.length > 1) capabilities |= PageFlow.CAP_MULTI_SIM;
+            if (random.nextBoolean()) capabilities |= PageFlow.CAP_GMS;
+            if (random.nextBoolean()) capabilities |= PageFlow.CAP_FINGERPRINT;
+
+            // As MKSetupWizardData.onNewPageList
+            mFlow = flow;
+            mState = PageFlow.readState(this, mCanSkipAccount);
+            final ArrayList<Integer> indices = new ArrayList<Integer>();
+            for (int i = 0; i < flow.size(); i++) {
+                if (flow.isIncluded(i, capabilities)) {
+                    mPages.add(new SimPage(PageFlowXml.getKey(flow, i), flow.isHidden(i, mState)));
+                    indices.add(i);
+                }
+            }
+            mFlowIndices = new int[indices.size()];
+            mFlowHidden = new boolean[indices.size()];
+            for (int i = 0; i < mFlowIndices.length; i++) {
+                mFlowIndices[i] = indices.get(i);
+                mFlowHidden[i] = mPages.get(i).mHidden;
+            }
+            mNavigator = new PageNavigator<SimPage>(mPages);
+            mQueue = new NavigationQueue<SimPage>(mNavigator);
+        }
+
+        @Override
+        public boolean isSimInserted() {
+            for (boolean sim : mSims) {
+                if (sim) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean allSimsInserted() {
+            for (boolean sim : mSims) {
+                if (!sim) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isMobileDataEnabled() {
+            return mMobileDataEnabled;
+        }
+
+        @Override
+        public boolean isNetworkConnected() {
+            return mConnected;
+        }
+
+        @Override
+        public boolean isTimeZoneSet() {
+            return mTimeZoneSet;
+        }
+
+        @Override
+        public boolean isTimeSet() {
+            return mTimeSet;
+        }
+
+        private SimPage page(String key) {
+            final int index = mNavigator.indexOf(key);
+            return index >= 0 ? mNavigator.get(index) : null;
+        }
+
+        private void setState(int bit, boolean set) {
+            mState = set ? mState | bit : mState & ~bit;
+        }
+
+        // As MKSetupWizardData.updateVisibility, after every broadcast
+        private void updateVisibility() {
+            for (int i = 0; i < mPages.size(); i++) {
+                final int index = mFlowIndices[i];
+                final boolean hidden = mFlow.isHidden(index, mState);
+                if (hidden == mFlowHidden[i]) {
+                    continue;
+                }
+                mFlowHidden[i] = hidden;
+                final SimPage page = mPages.get(i);
+                page.mHidden = hidden;
+                if (hidden && mFlow.isSkippedWhenHidden(index)
+                        && mNavigator.getCurrent() == page) {
+                    navigate(true);
+                }
+            }
+        }
+
+        private boolean isCurrent(String key) {
+            return mNavigator.getCurrent().getKey().equals(key);
+        }
+
+        /**
+         * Applies one event. Returns the number of page transitions made.
+         */
+        private int apply(int event, Random random) {
+            final int before = mNavigator.getCurrentIndex();
+            switch (event) {
+                case EVENT_SIM_INSERT:
+                case EVENT_SIM_REMOVE:
+                    mSims[random.nextInt(mSims.length)] = event == EVENT_SIM_INSERT;
+                    setState(PageFlow.STATE_SIM_INSERTED, isSimInserted());
+                    setState(PageFlow.STATE_ALL_SIMS_INSERTED, allSimsInserted());
+                    updateVisibility();
+                    break;
+                case EVENT_CONNECT:
+                case EVENT_DISCONNECT:
+                    mConnected = event == EVENT_CONNECT;
+                    setState(PageFlow.STATE_NETWORK_CONNECTED, mConnected);
+                    setState(PageFlow.STATE_ACCOUNT_SKIPPABLE, mCanSkipAccount);
+                    updateVisibility();
+                    break;
+                case EVENT_TIMEZONE:
+                    mTimeZoneSet = true;
+                    setState(PageFlow.STATE_TIMEZONE_SET, true);
+                    updateVisibility();
+                    break;
+                case EVENT_TIME:
+                    mTimeSet = true;
+                    setState(PageFlow.STATE_TIME_SET, true);
+                    updateVisibility();
+                    break;
+                case EVENT_NEXT:
+                case EVENT_BACK:
+                    // The buttons are only there while resumed
+                    if (mResumed) {
+                        navigate(event == EVENT_NEXT);
+                    }
+                    break;
+                case EVENT_PAUSE:
+                    mResumed = false;
+                    break;
+                case EVENT_RESUME:
+                    mResumed = true;
+                    runQueue();
+                    break;
+                case EVENT_CHECKED:
+                    if (mActionPending) {
+                        mActionPending = false;
+                        // Without skipping, only an added account lets it pass
+                        if (!mCanSkipAccount && random.nextBoolean()) {
+                            // Handled, the page sends the user back
+                            mQueue.clear();
+                            navigate(false);
+                        } else {
+                            final SimPage account = mNavigator.getCurrent();
+                            mPassedPage = account;
+                            mPassedForward = mActionForward;
+                            runQueue();
+                            if (!mCanSkipAccount) {
+                                // As GmsAccountPage once an account exists,
+                                // hidden by the page itself and kept hidden
+                                account.mHidden = true;
+                            }
+                        }
+                    }
+                    break;
+                case EVENT_LOADED:
+                    // As AbstractSetupData.onPageShown, from the page resuming
+                    if (mResumed && mInTransition && mLoading) {
+                        mInTransition = false;
+                        final SimPage shown = mNavigator.getCurrent();
+                        runQueue();
+                        // As MKSetupWizardData.onPageShown
+                        final int i = mPages.indexOf(shown);
+                        if (!mInTransition && mNavigator.getCurrent() == shown
+                                && mFlowHidden[i] && mFlow.isSkippedWhenHidden(mFlowIndices[i])) {
+                            navigate(true);
+                        }
+                    }
+                    break;
+            }
+            return mNavigator.getCurrentIndex() != before ? 1 : 0;
+        }
+
+        private void navigate(boolean forward) {
+            mRequestCount++;
+            mRequestedSteps++;
+            mQueue.enqueue(forward);
+            cancelStaleAction();
+            runQueue();
+        }
+
+        // As AbstractSetupData.cancelStalePageAction
+        private void cancelStaleAction() {
+            final int pending = mQueue.getPendingSteps();
+            if (mPassedPage != null && (pending == 0 || (pending > 0) != mPassedForward)) {
+                mPassedPage = null;
+            }
+            if (mActionPending && (pending == 0 || (pending > 0) != mActionForward)) {
+                mActionPending = false;
+            }
+        }
+
+        // As AbstractSetupData.runNavigationQueue
+        private void runQueue() {
+            if (mQueue.isEmpty() || !mResumed || mInTransition) {
+                return;
+            }
+            final int moved = mQueue.drain(mStepHandler);
+            if (moved == 0) {
+                return;
+            }
+            mInTransition = true;
+            final int requestCount = mRequestCount;
+            // As GmsAccountPage.doLoadAction going back
+            mLoading = !(moved < 0 && isCurrent(GMS_ACCOUNT));
+            if (!mLoading) {
+                navigate(false);
+            }
+            if (mRequestCount != requestCount) {
+                mInTransition = false;
+                runQueue();
+            }
+        }
+
+        private void check(int[] violations) {
+            // Only once navigation has settled, a hidden page may still be
+            // showing while the step queued to leave it waits for the load
+            final boolean settled = mResumed && !mInTransition && mQueue.isEmpty();
+            final int current = mNavigator.getCurrentIndex();
+            if (settled && mFlowHidden[current]
+                    && mFlow.isSkippedWhenHidden(mFlowIndices[current])) {
+                violations[0]++;
+            }
+            boolean hasNext = false;
+            for (int i = mNavigator.getCurrentIndex() + 1; i < mNavigator.size(); i++) {
+                if (!mNavigator.get(i).isHidden()) {
+                    hasNext = true;
+                    break;
+                }
+            }
+            final long accounted = mRunSteps + mQueue.getCoalescedSteps()
+                    + mQueue.getDroppedSteps() + Math.abs(mQueue.getPendingSteps());
+            if (accounted != mRequestedSteps
+                    || (mResumed && !mInTransition && !mActionPending && !mQueue.isEmpty())
+                    || (mInTransition && !mLoading)) {
+                violations[1]++;
+            }
+            if (mNavigator.isLast() == hasNext) {
+                violations[2]++;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        long events = 1000000;
+        long seed = System.nanoTime();
+        int traceLength = 24;
+        String flowPath = PageFlowXml.DEFAULT_PATH;
+        for (int i = 0; i < args.length; i++) {
+            if ("--events".equals(args[i])) {
+                events = Long.parseLong(args[++i]);
+            } else if ("--seed".equals(args[i])) {
+                seed = Long.parseLong(args[++i]);
+            } else if ("--trace".equals(args[i])) {
+                traceLength = Integer.parseInt(args[++i]);
+            } else if ("--flow".equals(args[i])) {
+                flowPath = args[++i];
+            }
+        }
+
+        final PageFlow flow = PageFlowXml.load(new File(flowPath));
+        final Random random = new Random(seed);
+        final int[] violations = new int[INVARIANTS.length];
+        final String[] firstTrace = new String[INVARIANTS.length];
+        final ArrayDeque<String> trace = new ArrayDeque<String>(traceLength + 1);
+        long transitions = 0;
+        long runs = 0;
+
+        final long start = System.nanoTime();
+        Device device = new Device(random, flow);
+        for (long n = 0; n < events; n++) {
+            if (device.mFinished) {
+                device = new Device(random, flow);
+                runs++;
+                trace.clear();
+            }
+            final int event = random.nextInt(EVENT_NAMES.length);
+            final int[] before = violations.clone();
+            transitions += device.apply(event, random);
+            device.check(violations);
+
+            if (traceLength > 0) {
+                if (trace.size() == traceLength) {
+                    trace.removeFirst();
+                }
+                trace.addLast(EVENT_NAMES[event] + " -> "
+                        + device.mNavigator.getCurrent().getKey()
+                        + (device.mResumed ? "" : " (paused)")
+                        + (device.mInTransition ? " (loading)" : "")
+                        + (device.mActionPending ? " (checking)" : "")
+                        + (device.mQueue.isEmpty() ? ""
+                                : " [" + device.mQueue.getPendingSteps() + " queued]"));
+                for (int i = 0; i < INVARIANTS.length; i++) {
+                    if (firstTrace[i] == null && violations[i] > before[i]) {
+                        StringBuilder sb = new StringBuilder();
+                        for (String line : trace) {
+                            sb.append("\n      ").append(line);
+                        }
+                        firstTrace[i] = sb.toString();
+                    }
+                }
+            }
+        }
+        final long elapsedNs = System.nanoTime() - start;
+
+        final double seconds = elapsedNs / 1e9;
+        System.out.println("seed=" + seed + " events=" + events + " runs=" + runs);
+        System.out.println(String.format("%.0f events/s, %.0f transitions/s (%d transitions)",
+                events / seconds, transitions / seconds, transitions));
+        boolean clean = true;
+        for (int i = 0; i < INVARIANTS.length; i++) {
+            System.out.println(String.format("%-16s %d", INVARIANTS[i], violations[i]));
+            if (firstTrace[i] != null) {
+                System.out.println("    first seen after:" + firstTrace[i]);
+            }
+            clean &= violations[i] == 0;
+        }
+        System.exit(clean ? 0 : 1);
+    }
+}
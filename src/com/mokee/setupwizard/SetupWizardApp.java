@@ -20,10 +20,12 @@ import android.app.Application;
 import android.app.StatusBarManager;
 import android.content.Context;
 import android.content.pm.PackageManager;
-import android.os.Handler;
 import android.provider.Settings;
 
+import com.mokee.setupwizard.util.EventRing;
+import com.mokee.setupwizard.util.RadioReadyTracker;
 import com.mokee.setupwizard.util.SetupWizardUtils;
+import com.mokee.setupwizard.util.StartupTrace;
 
 public class SetupWizardApp extends Application {
 
@@ -66,22 +68,13 @@ public class SetupWizardApp extends Application {
 
     public static final int RADIO_READY_TIMEOUT = 10 * 1000;
 
-    private boolean mIsRadioReady = false;
-
     private StatusBarManager mStatusBarManager;
 
-    private final Handler mHandler = new Handler();
-
-    private final Runnable mRadioTimeoutRunnable = new Runnable() {
-        @Override
-        public void run() {
-            mIsRadioReady = true;
-        }
-    };
-
     @Override
     public void onCreate() {
+        StartupTrace.begin("SetupWizardApp.onCreate");
         super.onCreate();
+        EventRing.installCrashHandler();
         mStatusBarManager = (StatusBarManager)getSystemService(Context.STATUS_BAR_SERVICE);
         try {
             // Since this is a new component, we need to disable here if the user
@@ -90,6 +83,7 @@ public class SetupWizardApp extends Application {
             if (!isOwner
                     || Settings.Secure.getInt(getContentResolver(),
                     Settings.Secure.USER_SETUP_COMPLETE) == 1) {
+                StartupTrace.begin("disableSetupWizard");
                 Thread t = new Thread(){
                     @Override
                     public void run() {
@@ -104,25 +98,22 @@ public class SetupWizardApp extends Application {
                     }
                 };
                 t.run();
+                StartupTrace.end();
             }  else {
-                disableCaptivePortalDetection();
+                prepareForSetup();
             }
         } catch (Settings.SettingNotFoundException e) {
             // Continue with setup
-            disableCaptivePortalDetection();
+            prepareForSetup();
         }
-        mHandler.postDelayed(mRadioTimeoutRunnable, SetupWizardApp.RADIO_READY_TIMEOUT);
-    }
-
-    public boolean isRadioReady() {
-        return mIsRadioReady;
+        StartupTrace.end();
     }
 
-    public void setRadioReady(boolean radioReady) {
-        if (!mIsRadioReady && radioReady) {
-            mHandler.removeCallbacks(mRadioTimeoutRunnable);
-        }
-        mIsRadioReady = radioReady;
+    private void prepareForSetup() {
+        StartupTrace.begin("prepareForSetup");
+        disableCaptivePortalDetection();
+        RadioReadyTracker.getInstance(this).start();
+        StartupTrace.end();
     }
 
     public void disableStatusBar() {
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.core;
+
+/**
+ * Collects next and previous requests and runs them later against a
+ * {@link PageNavigator}. Requests may arrive at any time, e.g. while the
+ * activity is paused or a page is still being loaded, and are kept as a
+ * count of steps: next and next moves two pages, next and previous
+ * cancel out. Has no Android dependencies so it can be exercised on the
+ * host.
+ */
+public class NavigationQueue<T extends NavigationNode> {
+
+    /**
+     * Lets the current page handle a step itself before the navigator moves.
+     */
+    public interface StepHandler<T> {
+        /**
+         * Returns false to hold this step and the ones behind it, e.g.
+         * while the page finishes work it needs before it can be left.
+         * {@link #drain} has to be called again once it is ready.
+         */
+        boolean isReady(T page, boolean forward);
+
+        /**
+         * Returns true if the page handled the step, e.g. by starting
+         * another activity, in which case the steps queued behind it are
+         * dropped.
+         */
+        boolean onStep(T page, boolean forward);
+    }
+
+    private final PageNavigator<T> mNavigator;
+
+    // Positive for next, negative for previous
+    private int mPendingSteps;
+
+    private long mCoalescedSteps;
+    private long mDroppedSteps;
+
+    public NavigationQueue(PageNavigator<T> navigator) {
+        mNavigator = navigator;
+    }
+
+    public void enqueue(boolean forward) {
+        if (mPendingSteps != 0 && (mPendingSteps > 0) != forward) {
+            mCoalescedSteps += 2;
+        }
+        mPendingSteps += forward ? 1 : -1;
+    }
+
+    public boolean isEmpty() {
+        return mPendingSteps == 0;
+    }
+
+    public int getPendingSteps() {
+        return mPendingSteps;
+    }
+
+    /**
+     * Drops every pending step.
+     */
+    public void clear() {
+        mDroppedSteps += Math.abs(mPendingSteps);
+        mPendingSteps = 0;
+    }
+
+    /**
+     * Steps that cancelled out against one in the other direction.
+     */
+    public long getCoalescedSteps() {
+        return mCoalescedSteps;
+    }
+
+    /**
+     * Steps dropped because a page handled the one before them, there was
+     * no page left to move to, or they were cleared.
+     */
+    public long getDroppedSteps() {
+        return mDroppedSteps;
+    }
+
+    /**
+     * Runs pending steps until none are left or the handler holds one.
+     * Returns how far the current page moved, in list positions; negative
+     * when it moved back and 0 when it did not move.
+     */
+    public int drain(StepHandler<T> handler) {
+        final int start = mNavigator.getCurrentIndex();
+        while (mPendingSteps != 0) {
+            final boolean forward = mPendingSteps > 0;
+            if (!handler.isReady(mNavigator.getCurrent(), forward)) {
+                break;
+            }
+            mPendingSteps += forward ? -1 : 1;
+            final boolean moved;
+            if (handler.onStep(mNavigator.getCurrent(), forward)) {
+                moved = false;
+            } else if (forward) {
+                moved = mNavigator.advanceToNextUnhidden();
+            } else {
+                moved = mNavigator.advanceToPreviousUnhidden();
+            }
+            if (!moved) {
+                mDroppedSteps += Math.abs(mPendingSteps);
+                mPendingSteps = 0;
+            }
+        }
+        return mNavigator.getCurrentIndex() - start;
+    }
+}
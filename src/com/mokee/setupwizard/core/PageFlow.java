@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.core;
+
+import java.util.ArrayList;
+
+/**
+ * The pages of the wizard in order, as declared in res/xml/page_flow.xml.
+ * Whether a page is in the list at all depends on capabilities of the
+ * device, fixed for the run, and whether it is hidden on the state of the
+ * device, which changes as broadcasts come in. Both are bit masks, and each
+ * page is hidden when any of its clauses matches the state, so visibility
+ * of every page is one pass over a few int arrays.
+ */
+public final class PageFlow {
+
+    /**
+     * The device state the rules depend on.
+     */
+    public interface DeviceState {
+        // At least one sim is inserted
+        public boolean isSimInserted();
+        // Every slot has a sim with an active subscription
+        public boolean allSimsInserted();
+        public boolean isMobileDataEnabled();
+        public boolean isNetworkConnected();
+        public boolean isTimeZoneSet();
+        public boolean isTimeSet();
+    }
+
+    public static final int CAP_LEANBACK = 1 << 0;
+    public static final int CAP_TELEPHONY = 1 << 1;
+    public static final int CAP_MULTI_SIM = 1 << 2;
+    public static final int CAP_GMS = 1 << 3;
+    public static final int CAP_FINGERPRINT = 1 << 4;
+    public static final int CAP_OWNER = 1 << 5;
+
+    private static final String[] CAP_NAMES = {
+            "leanback", "telephony", "multi_sim", "gms", "fingerprint", "owner"
+    };
+
+    public static final int STATE_SIM_INSERTED = 1 << 0;
+    public static final int STATE_ALL_SIMS_INSERTED = 1 << 1;
+    public static final int STATE_MOBILE_DATA_ENABLED = 1 << 2;
+    public static final int STATE_NETWORK_CONNECTED = 1 << 3;
+    public static final int STATE_TIMEZONE_SET = 1 << 4;
+    public static final int STATE_TIME_SET = 1 << 5;
+    public static final int STATE_ACCOUNT_SKIPPABLE = 1 << 6;
+
+    private static final String[] STATE_NAMES = {
+            "sim_inserted", "all_sims_inserted", "mobile_data_enabled", "network_connected",
+            "timezone_set", "time_set", "account_skippable"
+    };
+
+    private final String[] mClassNames;
+    private final int[] mRequires;
+    private final boolean[] mSkipWhenHidden;
+    // Clauses of page i run from mClauseStarts[i] to mClauseStarts[i + 1]
+    private final int[] mClauseStarts;
+    private final int[] mClauseMasks;
+    private final int[] mClauseValues;
+
+    private PageFlow(Builder builder) {
+        final int size = builder.mClassNames.size();
+        mClassNames = builder.mClassNames.toArray(new String[size]);
+        mRequires = toArray(builder.mRequires);
+        mSkipWhenHidden = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            mSkipWhenHidden[i] = builder.mSkipWhenHidden.get(i);
+        }
+        mClauseStarts = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            mClauseStarts[i] = builder.mClauseStarts.get(i);
+        }
+        mClauseStarts[size] = builder.mClauseMasks.size();
+        mClauseMasks = toArray(builder.mClauseMasks);
+        mClauseValues = toArray(builder.mClauseValues);
+    }
+
+    public int size() {
+        return mClassNames.length;
+    }
+
+    public String getClassName(int index) {
+        return mClassNames[index];
+    }
+
+    /**
+     * Whether the page belongs in the list on a device with these
+     * capabilities.
+     */
+    public boolean isIncluded(int index, int capabilities) {
+        return (capabilities & mRequires[index]) == mRequires[index];
+    }
+
+    /**
+     * Whether the page is shown or hidden depending on the state at all.
+     */
+    public boolean hasVisibilityRules(int index) {
+        return mClauseStarts[index + 1] > mClauseStarts[index];
+    }
+
+    /**
+     * Whether the wizard moves on by itself when the page gets hidden while
+     * it is showing.
+     */
+    public boolean isSkippedWhenHidden(int index) {
+        return mSkipWhenHidden[index];
+    }
+
+    public boolean isHidden(int index, int state) {
+        for (int i = mClauseStarts[index]; i < mClauseStarts[index + 1]; i++) {
+            if ((state & mClauseMasks[i]) == mClauseValues[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The state bits the rules look at, read from the device.
+     */
+    public static int readState(DeviceState state, boolean accountSkippable) {
+        int bits = 0;
+        if (state.isSimInserted()) bits |= STATE_SIM_INSERTED;
+        if (state.allSimsInserted()) bits |= STATE_ALL_SIMS_INSERTED;
+        if (state.isMobileDataEnabled()) bits |= STATE_MOBILE_DATA_ENABLED;
+        if (state.isNetworkConnected()) bits |= STATE_NETWORK_CONNECTED;
+        if (state.isTimeZoneSet()) bits |= STATE_TIMEZONE_SET;
+        if (state.isTimeSet()) bits |= STATE_TIME_SET;
+        if (accountSkippable) bits |= STATE_ACCOUNT_SKIPPABLE;
+        return bits;
+    }
+
+    /**
+     * Parses capability names separated by '|', such as "telephony|gms".
+     */
+    public static int parseCapabilities(String names) {
+        return parseFlags(names, CAP_NAMES);
+    }
+
+    /**
+     * Parses state names separated by '|', such as "timezone_set|time_set".
+     */
+    public static int parseState(String names) {
+        return parseFlags(names, STATE_NAMES);
+    }
+
+    private static int parseFlags(String names, String[] known) {
+        int flags = 0;
+        if (names == null || names.isEmpty()) {
+            return flags;
+        }
+        for (String name : names.split("\\|")) {
+            final String trimmed = name.trim();
+            int bit = -1;
+            for (int i = 0; i < known.length; i++) {
+                if (known[i].equals(trimmed)) {
+                    bit = i;
+                    break;
+                }
+            }
+            if (bit < 0) {
+                throw new IllegalArgumentException("Unknown flag " + trimmed);
+            }
+            flags |= 1 << bit;
+        }
+        return flags;
+    }
+
+    private static int[] toArray(ArrayList<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    public static class Builder {
+
+        private final ArrayList<String> mClassNames = new ArrayList<String>();
+        private final ArrayList<Integer> mRequires = new ArrayList<Integer>();
+        private final ArrayList<Boolean> mSkipWhenHidden = new ArrayList<Boolean>();
+        private final ArrayList<Integer> mClauseStarts = new ArrayList<Integer>();
+        private final ArrayList<Integer> mClauseMasks = new ArrayList<Integer>();
+        private final ArrayList<Integer> mClauseValues = new ArrayList<Integer>();
+
+        /**
+         * @param requires capabilities the device needs for the page to be
+         *                 in the list
+         */
+        public Builder addPage(String className, int requires, boolean skipWhenHidden) {
+            mClassNames.add(className);
+            mRequires.add(requires);
+            mSkipWhenHidden.add(skipWhenHidden);
+            mClauseStarts.add(mClauseMasks.size());
+            return this;
+        }
+
+        /**
+         * Hides the page added last whenever every bit of set is set in the
+         * state and every bit of clear is clear.
+         */
+        public Builder addHiddenWhen(int set, int clear) {
+            if (mClassNames.isEmpty()) {
+                throw new IllegalStateException("No page to hide");
+            }
+            if ((set & clear) != 0) {
+                throw new IllegalArgumentException("State both set and clear: " + (set & clear));
+            }
+            mClauseMasks.add(set | clear);
+            mClauseValues.add(set);
+            return this;
+        }
+
+        public PageFlow build() {
+            return new PageFlow(this);
+        }
+    }
+}
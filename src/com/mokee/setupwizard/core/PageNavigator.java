@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Tracks the current page of an ordered page list and moves between the
+ * pages that are not hidden. Has no Android dependencies so it can be
+ * exercised on the host.
+ */
+public class PageNavigator<T extends NavigationNode> {
+
+    private final ArrayList<T> mPages;
+    private final HashMap<String, Integer> mIndexes;
+
+    private int mCurrentIndex = 0;
+
+    public PageNavigator(Collection<T> pages) {
+        mPages = new ArrayList<T>(pages);
+        mIndexes = new HashMap<String, Integer>(mPages.size() * 2);
+        for (int i = 0; i < mPages.size(); i++) {
+            mIndexes.put(mPages.get(i).getKey(), i);
+        }
+    }
+
+    public int size() {
+        return mPages.size();
+    }
+
+    public T get(int index) {
+        return index >= 0 && index < mPages.size() ? mPages.get(index) : null;
+    }
+
+    public int indexOf(String key) {
+        Integer index = mIndexes.get(key);
+        return index != null ? index : -1;
+    }
+
+    public T getCurrent() {
+        return get(mCurrentIndex);
+    }
+
+    public int getCurrentIndex() {
+        return mCurrentIndex;
+    }
+
+    public boolean isFirst() {
+        return mCurrentIndex == 0;
+    }
+
+    public boolean isLast() {
+        return mCurrentIndex == mPages.size() - 1;
+    }
+
+    /**
+     * Moves to the next page that is not hidden. Stays put and returns
+     * false if there is none.
+     */
+    public boolean advanceToNextUnhidden() {
+        for (int i = mCurrentIndex + 1; i < mPages.size(); i++) {
+            if (!mPages.get(i).isHidden()) {
+                mCurrentIndex = i;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves to the previous page that is not hidden. Stays put and returns
+     * false if there is none.
+     */
+    public boolean advanceToPreviousUnhidden() {
+        for (int i = mCurrentIndex - 1; i >= 0; i--) {
+            if (!mPages.get(i).isHidden()) {
+                mCurrentIndex = i;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Makes the page with the given key current, or the first page after it
+     * that is not hidden if it no longer applies. Falls back to the first
+     * page if there is no such page.
+     */
+    public void restore(String key) {
+        final int index = indexOf(key);
+        if (index < 0) {
+            return;
+        }
+        mCurrentIndex = index;
+        if (getCurrent().isHidden() && !advanceToNextUnhidden()) {
+            mCurrentIndex = 0;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Builds the time zone picker list from (id, display name) pairs, with the
+ * current GMT offset of each zone, sorted by offset or by name.
+ */
+public class TimeZoneListBuilder {
+
+    private static final int HOURS_1 = 60 * 60000;
+
+    public static class Entry {
+        public final String mId;
+        public final String mDisplayName;
+        public final String mGmt;
+        public final int mOffset;
+
+        private Entry(String id, String displayName, String gmt, int offset) {
+            mId = id;
+            mDisplayName = displayName;
+            mGmt = gmt;
+            mOffset = offset;
+        }
+    }
+
+    private static final Comparator<Entry> BY_OFFSET = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return lhs.mOffset < rhs.mOffset ? -1 : (lhs.mOffset == rhs.mOffset ? 0 : 1);
+        }
+    };
+
+    private static final Comparator<Entry> BY_NAME = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return lhs.mDisplayName.compareTo(rhs.mDisplayName);
+        }
+    };
+
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+    private final long mDate;
+
+    /**
+     * @param date the time offsets are computed for
+     */
+    public TimeZoneListBuilder(long date) {
+        mDate = date;
+    }
+
+    public TimeZoneListBuilder add(String id, String displayName) {
+        final int offset = TimeZone.getTimeZone(id).getOffset(mDate);
+        mEntries.add(new Entry(id, displayName, formatGmt(offset), offset));
+        return this;
+    }
+
+    public List<Entry> build(boolean sortedByName) {
+        ArrayList<Entry> entries = new ArrayList<Entry>(mEntries);
+        // Stable, zones with the same offset keep the order they were added in
+        Collections.sort(entries, sortedByName ? BY_NAME : BY_OFFSET);
+        return entries;
+    }
+
+    public static int indexOf(List<Entry> entries, String id) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).mId.equals(id)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static String formatGmt(int offset) {
+        final int p = Math.abs(offset);
+        final StringBuilder name = new StringBuilder();
+        name.append("GMT");
+
+        if (offset < 0) {
+            name.append('-');
+        } else {
+            name.append('+');
+        }
+
+        name.append(p / (HOURS_1));
+        name.append(':');
+
+        int min = p / 60000;
+        min %= 60;
+
+        if (min < 10) {
+            name.append('0');
+        }
+        name.append(min);
+        return name.toString();
+    }
+}
@@ -19,8 +19,19 @@ package com.mokee.setupwizard.setup;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.mokee.setupwizard.core.NavigationQueue;
+import com.mokee.setupwizard.core.PageNavigator;
+import com.mokee.setupwizard.util.EventRing;
+import com.mokee.setupwizard.util.LatencyHistograms;
+import com.mokee.setupwizard.util.PageTimings;
+import com.mokee.setupwizard.util.ProgressJournal;
+import com.mokee.setupwizard.util.StartupTrace;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 public abstract class AbstractSetupData extends BroadcastReceiver implements SetupDataCallbacks {
 
@@ -30,17 +41,40 @@ public abstract class AbstractSetupData extends BroadcastReceiver implements Set
     private ArrayList<SetupDataCallbacks> mListeners = new ArrayList<SetupDataCallbacks>();
     private PageList mPageList;
 
-    private int mCurrentPageIndex = 0;
+    private PageNavigator<Page> mNavigator;
 
     private boolean mIsResumed = false;
 
     private boolean mIsFinished = false;
 
-    private OnResumeRunnable mOnResumeRunnable;
+    private NavigationQueue<Page> mNavigationQueue;
+
+    // Set from the moment the current page changes until it is on screen
+    private boolean mInTransition = false;
+
+    // Counts next and previous requests, to spot those made while loading
+    private int mRequestCount;
+
+    // When the page change in progress was asked for, -1 if there is none
+    private long mTransitionStart = -1;
+
+    // The action the first queued step waits for, and the page it is for
+    private PageAction mPageAction;
+    private Page mPageActionPage;
+    private boolean mPageActionForward;
+    // Page whose action let its step through, so it is not started again
+    private Page mPassedPage;
+    private boolean mPassedForward;
+
+    private ProgressJournal mJournal;
 
     public AbstractSetupData(Context context) {
         mContext = context;
+        StartupTrace.begin("onNewPageList");
         mPageList = onNewPageList();
+        mNavigator = new PageNavigator<Page>(mPageList.values());
+        mNavigationQueue = new NavigationQueue<Page>(mNavigator);
+        StartupTrace.end();
     }
 
     protected abstract PageList onNewPageList();
@@ -59,6 +93,13 @@ public abstract class AbstractSetupData extends BroadcastReceiver implements Set
         }
     }
 
+    @Override
+    public void onPageActionPending(boolean pending) {
+        for (int i = 0; i < mListeners.size(); i++) {
+            mListeners.get(i).onPageActionPending(pending);
+        }
+    }
+
     @Override
     public void onFinish() {
         for (int i = 0; i < mListeners.size(); i++) {
@@ -80,11 +121,11 @@ public abstract class AbstractSetupData extends BroadcastReceiver implements Set
 
     @Override
     public Page getPage(int index) {
-        return mPageList.getPage(index);
+        return mNavigator.get(index);
     }
 
     public Page getCurrentPage() {
-        return mPageList.getPage(mCurrentPageIndex);
+        return mNavigator.getCurrent();
     }
 
     @Override
@@ -94,65 +135,61 @@ public abstract class AbstractSetupData extends BroadcastReceiver implements Set
     }
 
     public boolean isFirstPage() {
-        return mCurrentPageIndex == 0;
+        return mNavigator.isFirst();
     }
 
     public boolean isLastPage() {
-        return mCurrentPageIndex == mPageList.size() - 1;
+        return mNavigator.isLast();
+    }
+
+    public boolean isPageActionPending() {
+        return mPageAction != null;
     }
 
     @Override
     public void onNextPage() {
-        Runnable runnable = new Runnable() {
-            @Override
-            public void run() {
-                if (getCurrentPage().doNextAction() == false) {
-                    if (advanceToNextUnhidden()) {
-                        for (int i = 0; i < mListeners.size(); i++) {
-                            mListeners.get(i).onNextPage();
-                        }
-                    }
-                }
-            }
-        };
-        doPreviousNext(runnable);
+        if (PageTimings.ENABLED) PageTimings.mark(PageTimings.PHASE_NAVIGATE);
+        EventRing.record(EventRing.EVENT_NEXT, getCurrentPage().getKey(),
+                mNavigator.getCurrentIndex(), mIsResumed ? 1 : 0);
+        mRequestCount++;
+        if (mTransitionStart < 0) {
+            mTransitionStart = SystemClock.elapsedRealtime();
+        }
+        mNavigationQueue.enqueue(true);
+        cancelStalePageAction();
+        runNavigationQueue();
     }
 
     @Override
     public void onPreviousPage() {
-        Runnable runnable = new Runnable() {
-            @Override
-            public void run() {
-                if (getCurrentPage().doPreviousAction() == false) {
-                    if (advanceToPreviousUnhidden()) {
-                        for (int i = 0; i < mListeners.size(); i++) {
-                            mListeners.get(i).onPreviousPage();
-                        }
-                    }
-                }
-            }
-        };
-        doPreviousNext(runnable);
-    }
-
-    private boolean advanceToNextUnhidden() {
-        while (mCurrentPageIndex < mPageList.size()) {
-            mCurrentPageIndex++;
-            if (!getCurrentPage().isHidden()) {
-                return true;
-            }
+        if (PageTimings.ENABLED) PageTimings.mark(PageTimings.PHASE_NAVIGATE);
+        EventRing.record(EventRing.EVENT_PREVIOUS, getCurrentPage().getKey(),
+                mNavigator.getCurrentIndex(), mIsResumed ? 1 : 0);
+        mRequestCount++;
+        if (mTransitionStart < 0) {
+            mTransitionStart = SystemClock.elapsedRealtime();
         }
-        return false;
+        mNavigationQueue.enqueue(false);
+        cancelStalePageAction();
+        runNavigationQueue();
     }
 
-    private boolean advanceToPreviousUnhidden() {
-        while (mCurrentPageIndex > 0) {
-            mCurrentPageIndex--;
-            if (!getCurrentPage().isHidden()) {
-                return true;
-            }
+    /**
+     * Called once the current page is on screen, runs whatever was
+     * requested while it was loading.
+     */
+    public void onPageShown(Page page) {
+        if (!isCurrentPage(page)) {
+            return;
         }
-        return false;
+        mInTransition = false;
+        if (mTransitionStart >= 0) {
+            LatencyHistograms.getInstance(mContext).record(
+                    LatencyHistograms.METRIC_PAGE + page.getKey(),
+                    SystemClock.elapsedRealtime() - mTransitionStart);
+            mTransitionStart = -1;
+        }
+        runNavigationQueue();
     }
 
     public void load(Bundle savedValues) {
@@ -164,16 +201,172 @@ public abstract class AbstractSetupData extends BroadcastReceiver implements Set
         }
     }
 
-    private void doPreviousNext(Runnable runnable) {
-        if (mIsResumed) {
-            runnable.run();
-        } else {
-            mOnResumeRunnable = new OnResumeRunnable(runnable, this);
+    /**
+     * Journals progress at every page boundary from now on.
+     */
+    public void setJournal(ProgressJournal journal) {
+        mJournal = journal;
+    }
+
+    /**
+     * Puts back the page data and current page from a journal snapshot.
+     * Must be called before the first page is loaded.
+     */
+    public void restore(ProgressJournal.Snapshot snapshot) {
+        load(snapshot.mData);
+        // The page may no longer apply, e.g. the sim was removed
+        mNavigator.restore(snapshot.mCurrentPageKey);
+        Log.i(TAG, "Resumed on " + getCurrentPage().getKey() + ", journal read in "
+                + snapshot.mReadTimeMs + "ms");
+    }
+
+    /**
+     * Drops the journal once setup is done. Not on the main thread.
+     */
+    public void deleteJournal() {
+        if (mJournal != null) {
+            mJournal.delete();
+        }
+    }
+
+    private void journalProgress() {
+        if (mJournal == null) {
+            return;
+        }
+        HashMap<String, Bundle> pageData = new HashMap<String, Bundle>();
+        for (Page page : mPageList.values()) {
+            pageData.put(page.getKey(), page.getData());
+        }
+        mJournal.recordPage(getCurrentPage().getKey(), pageData);
+    }
+
+    private void recordPageEvent() {
+        EventRing.record(EventRing.EVENT_PAGE, getCurrentPage().getKey(),
+                mNavigator.getCurrentIndex(), 0);
+    }
+
+    private final NavigationQueue.StepHandler<Page> mStepHandler =
+            new NavigationQueue.StepHandler<Page>() {
+        @Override
+        public boolean isReady(Page page, boolean forward) {
+            if (mPageAction != null) {
+                return false;
+            }
+            if (page == mPassedPage && forward == mPassedForward) {
+                mPassedPage = null;
+                return true;
+            }
+            PageAction action = forward ? page.createNextAction() : page.createPreviousAction();
+            if (action == null) {
+                return true;
+            }
+            EventRing.record(EventRing.EVENT_ACTION, page.getKey(), forward ? 1 : 0, 0);
+            mPageAction = action;
+            mPageActionPage = page;
+            mPageActionForward = forward;
+            onPageActionPending(true);
+            action.start(mPageActionListener);
+            return false;
+        }
+
+        @Override
+        public boolean onStep(Page page, boolean forward) {
+            return forward ? page.doNextAction() : page.doPreviousAction();
+        }
+    };
+
+    private final PageAction.Listener mPageActionListener = new PageAction.Listener() {
+        @Override
+        public void onActionDone(PageAction action, boolean handled) {
+            if (action != mPageAction) {
+                return;
+            }
+            EventRing.record(EventRing.EVENT_ACTION, mPageActionPage.getKey(),
+                    mPageActionForward ? 1 : 0, handled ? 2 : 1);
+            mPageAction = null;
+            onPageActionPending(false);
+            if (handled) {
+                // The page took over, like it does from doNextAction()
+                mNavigationQueue.clear();
+            } else {
+                mPassedPage = mPageActionPage;
+                mPassedForward = mPageActionForward;
+                runNavigationQueue();
+            }
+        }
+    };
+
+    /**
+     * Cancels the running action once the steps waiting for it are gone,
+     * e.g. the user went back while the page was still checking.
+     */
+    private void cancelStalePageAction() {
+        final int pending = mNavigationQueue.getPendingSteps();
+        if (mPassedPage != null && (pending == 0 || (pending > 0) != mPassedForward)) {
+            mPassedPage = null;
+        }
+        if (mPageAction == null) {
+            return;
+        }
+        if (pending != 0 && (pending > 0) == mPageActionForward) {
+            return;
+        }
+        EventRing.record(EventRing.EVENT_ACTION, mPageActionPage.getKey(),
+                mPageActionForward ? 1 : 0, 3);
+        mPageAction.cancel(true);
+        mPageAction = null;
+        onPageActionPending(false);
+    }
+
+    /**
+     * Runs the queued steps at once and loads only the page they end on.
+     * Waits while paused, while the last page change is still loading, or
+     * while the page runs an action it needs first.
+     */
+    private void runNavigationQueue() {
+        if (mNavigationQueue.isEmpty()) {
+            return;
+        }
+        if (!mIsResumed || mInTransition) {
+            EventRing.record(EventRing.EVENT_DEFERRED, getCurrentPage().getKey(),
+                    mNavigationQueue.getPendingSteps(), mInTransition ? 1 : 0);
+            return;
+        }
+        final int moved = mNavigationQueue.drain(mStepHandler);
+        if (moved == 0) {
+            if (mNavigationQueue.isEmpty()) {
+                // The page handled it or there was nowhere to go
+                mTransitionStart = -1;
+            }
+            return;
+        }
+        if (mTransitionStart < 0) {
+            // Steps queued up while the last page was loading
+            mTransitionStart = SystemClock.elapsedRealtime();
+        }
+        mInTransition = true;
+        recordPageEvent();
+        journalProgress();
+        final int requestCount = mRequestCount;
+        for (int i = 0; i < mListeners.size(); i++) {
+            if (moved > 0) {
+                mListeners.get(i).onNextPage();
+            } else {
+                mListeners.get(i).onPreviousPage();
+            }
+        }
+        if (mRequestCount != requestCount) {
+            // The page moved on from its doLoadAction(), like GmsAccountPage
+            // does going back, so it will never be shown
+            mInTransition = false;
+            runNavigationQueue();
         }
     }
 
     public void onDestroy() {
-        mOnResumeRunnable = null;
+        // The pending steps stay with a retained instance for the next
+        // activity, whose page will report itself shown again
+        mInTransition = false;
     }
 
     public void onPause() {
@@ -182,9 +375,7 @@ public abstract class AbstractSetupData extends BroadcastReceiver implements Set
 
     public void onResume() {
         mIsResumed = true;
-        if (mOnResumeRunnable != null) {
-            mOnResumeRunnable.run();
-        }
+        runNavigationQueue();
     }
 
     public void finishPages() {
@@ -195,9 +386,9 @@ public abstract class AbstractSetupData extends BroadcastReceiver implements Set
     }
 
     @Override
-    public void addFinishRunnable(Runnable runnable) {
+    public void addFinishRunnable(String name, Runnable runnable) {
         for (int i = 0; i < mListeners.size(); i++) {
-            mListeners.get(i).addFinishRunnable(runnable);
+            mListeners.get(i).addFinishRunnable(name, runnable);
         }
     }
 
@@ -220,21 +411,4 @@ public abstract class AbstractSetupData extends BroadcastReceiver implements Set
     public void unregisterListener(SetupDataCallbacks listener) {
         mListeners.remove(listener);
     }
-
-    private static class OnResumeRunnable implements Runnable {
-
-        private final AbstractSetupData mAbstractSetupData;
-        private final Runnable mRunnable;
-
-        private OnResumeRunnable(Runnable runnable, AbstractSetupData abstractSetupData) {
-            mAbstractSetupData = abstractSetupData;
-            mRunnable = runnable;
-        }
-
-        @Override
-        public void run() {
-            mRunnable.run();
-            mAbstractSetupData.mOnResumeRunnable = null;
-        }
-    }
 }
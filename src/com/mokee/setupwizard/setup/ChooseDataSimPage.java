@@ -16,22 +16,19 @@
 
 package com.mokee.setupwizard.setup;
 
-import android.app.Activity;
 import android.app.Fragment;
 import android.app.FragmentManager;
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Bundle;
 import android.os.Handler;
-import android.telephony.PhoneStateListener;
+import android.os.SystemClock;
 import android.telephony.ServiceState;
 import android.telephony.SignalStrength;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
+import android.util.Log;
 import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -42,13 +39,13 @@ import android.widget.CheckBox;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
-
-import com.android.internal.telephony.TelephonyIntents;
+import android.widget.Toast;
 
 import com.mokee.setupwizard.R;
-import com.mokee.setupwizard.SetupWizardApp;
 import com.mokee.setupwizard.ui.SetupPageFragment;
-import com.mokee.setupwizard.util.SetupWizardUtils;
+import com.mokee.setupwizard.util.DataSubSwitchController;
+import com.mokee.setupwizard.util.RadioReadyTracker;
+import com.mokee.setupwizard.util.TelephonyStateHub;
 
 import java.util.List;
 
@@ -56,6 +53,9 @@ public class ChooseDataSimPage extends SetupPage {
 
     public static final String TAG = "ChooseDataSimPage";
 
+    // Set ahead of time instead of picked, value: int sim slot
+    public static final String KEY_DATA_SIM_SLOT = "data_sim_slot";
+
     public ChooseDataSimPage(Context context, SetupDataCallbacks callbacks) {
         super(context, callbacks);
     }
@@ -83,22 +83,44 @@ public class ChooseDataSimPage extends SetupPage {
         return R.string.setup_choose_data_sim;
     }
 
+    @Override
+    public void onFinishSetup() {
+        if (!getData().containsKey(KEY_DATA_SIM_SLOT)) {
+            return;
+        }
+        final int slot = getData().getInt(KEY_DATA_SIM_SLOT);
+        getCallbacks().addFinishRunnable(TAG, new Runnable() {
+            @Override
+            public void run() {
+                SubscriptionManager subscriptionManager = SubscriptionManager.from(mContext);
+                SubscriptionInfo subInfoRecord =
+                        subscriptionManager.getActiveSubscriptionInfoForSimSlotIndex(slot);
+                if (subInfoRecord == null) {
+                    Log.w(TAG, "No subscription in slot " + slot + " for data");
+                    return;
+                }
+                // Nobody is waiting on the switch, no need to confirm it
+                subscriptionManager.setDefaultDataSubId(subInfoRecord.getSubscriptionId());
+            }
+        });
+    }
+
 
     public static class ChooseDataSimFragment extends SetupPageFragment {
 
+        // Signal strength can be reported many times a second on a weak
+        // network, only redraw the bars at this cadence.
+        private static final int SIGNAL_UPDATE_INTERVAL_MS = 1000;
+
         private ViewGroup mPageView;
         private ProgressBar mProgressBar;
-        private SparseArray<TextView> mNameViews;
-        private SparseArray<ImageView> mSignalViews;
-        private SparseArray<CheckBox> mCheckBoxes;
-        private SparseArray<View> mRows;
+        private SparseArray<SimRow> mSimRows;
         private Button mNextButton;
 
         private TelephonyManager mPhone;
-        private SparseArray<SubscriptionInfo> mSubInfoRecords;
-        private SparseArray<SignalStrength> mSignalStrengths;
-        private SparseArray<ServiceState> mServiceStates;
-        private SparseArray<PhoneStateListener> mPhoneStateListeners;
+        private TelephonyStateHub mTelephonyStateHub;
+        private RadioReadyTracker mRadioReadyTracker;
+        private DataSubSwitchController mDataSubSwitchController;
 
         private boolean mIsAttached = false;
         private boolean mRadioReady = false;
@@ -107,20 +129,18 @@ public class ChooseDataSimPage extends SetupPage {
         private SubscriptionManager mSubscriptionManager;
 
         private int mCurrentDataPhoneId;
-
-        // This is static because a user can click back mid operation.
-        // We want to persist what the user was changing to because of the
-        // async callback can sometimes take a long time.
-        private static int sChangingToDataPhoneId = -1;
+        private int mCheckedDataPhoneId;
 
         private boolean mDisabledForSwitch = false;
 
+        private long mLastSignalUpdate;
+
         private final Handler mHandler = new Handler();
 
-        private final Runnable mRadioReadyRunnable = new Runnable() {
+        private final RadioReadyTracker.Callback mRadioReadyCallback =
+                new RadioReadyTracker.Callback() {
             @Override
-            public void run() {
-                // If we timeout out waiting for the radio, Oh well.
+            public void onRadioReady() {
                 if (!mRadioReady) {
                     mRadioReady = true;
                     checkForRadioReady();
@@ -128,6 +148,20 @@ public class ChooseDataSimPage extends SetupPage {
             }
         };
 
+        private final Runnable mSignalUpdateRunnable = new Runnable() {
+            @Override
+            public void run() {
+                mLastSignalUpdate = SystemClock.uptimeMillis();
+                for (int i = 0; i < mSimRows.size(); i++) {
+                    SimRow simRow = mSimRows.valueAt(i);
+                    if (simRow.mSignalDirty) {
+                        simRow.mSignalDirty = false;
+                        updateSimRow(simRow);
+                    }
+                }
+            }
+        };
+
         private View.OnClickListener mSetDataSimClickListener = new View.OnClickListener() {
             @Override
             public void onClick(View view) {
@@ -147,30 +181,15 @@ public class ChooseDataSimPage extends SetupPage {
             List<SubscriptionInfo> subInfoRecords = mSubscriptionManager.getActiveSubscriptionInfoList();
             int simCount =
                     subInfoRecords != null ? subInfoRecords.size() : 0;
-            mSubInfoRecords = new SparseArray<SubscriptionInfo>(simCount);
-            for (SubscriptionInfo subInfoRecord : subInfoRecords) {
-                mSubInfoRecords.put(subInfoRecord.getSimSlotIndex(), subInfoRecord);
-            }
-            mNameViews = new SparseArray<TextView>(simCount);
-            mSignalViews = new SparseArray<ImageView>(simCount);
-            mCheckBoxes = new SparseArray<CheckBox>(simCount);
-            mRows = new SparseArray<View>(simCount);
-            mServiceStates = new SparseArray<ServiceState>(simCount);
-            mSignalStrengths = new SparseArray<SignalStrength>(simCount);
-            mPhoneStateListeners = new SparseArray<PhoneStateListener>(simCount);
+            mSimRows = new SparseArray<SimRow>(simCount);
             LayoutInflater inflater = LayoutInflater.from(getActivity());
             for (int i = 0; i < simCount; i++) {
-                View simRow = inflater.inflate(R.layout.data_sim_row, null);
-                mPageView.addView(simRow);
-                SubscriptionInfo subInfoRecord = mSubInfoRecords.valueAt(i);
-                simRow.setTag(subInfoRecord);
-                simRow.setOnClickListener(mSetDataSimClickListener);
-                int slot = subInfoRecord.getSimSlotIndex();
-                mNameViews.put(slot, (TextView) simRow.findViewById(R.id.sim_title));
-                mSignalViews.put(slot, (ImageView) simRow.findViewById(R.id.signal));
-                mCheckBoxes.put(slot, (CheckBox) simRow.findViewById(R.id.enable_check));
-                mRows.put(slot, simRow);
-                mPhoneStateListeners.put(slot, createPhoneStateListener(subInfoRecord));
+                SubscriptionInfo subInfoRecord = subInfoRecords.get(i);
+                View row = inflater.inflate(R.layout.data_sim_row, null);
+                mPageView.addView(row);
+                row.setTag(subInfoRecord);
+                row.setOnClickListener(mSetDataSimClickListener);
+                mSimRows.put(subInfoRecord.getSimSlotIndex(), new SimRow(subInfoRecord, row));
                 mPageView.addView(inflater.inflate(R.layout.divider, null));
             }
             updateSignalStrengths();
@@ -186,108 +205,121 @@ public class ChooseDataSimPage extends SetupPage {
         public void onCreate(Bundle savedInstanceState) {
             super.onCreate(savedInstanceState);
             mContext = getActivity().getApplicationContext();
+            mPhone = (TelephonyManager)mContext.getSystemService(Context.TELEPHONY_SERVICE);
+            mTelephonyStateHub = TelephonyStateHub.getInstance(mContext);
+            mRadioReadyTracker = RadioReadyTracker.getInstance(mContext);
+            mDataSubSwitchController = DataSubSwitchController.getInstance(mContext);
             mSubscriptionManager = SubscriptionManager.from(mContext);
             mCurrentDataPhoneId = mSubscriptionManager.getDefaultDataPhoneId();
-            if (sChangingToDataPhoneId == -1) {
-                sChangingToDataPhoneId = mCurrentDataPhoneId;
-            }
+            mCheckedDataPhoneId = mCurrentDataPhoneId;
         }
 
         @Override
         public void onResume() {
             super.onResume();
             mIsAttached = true;
-            mPhone = (TelephonyManager)getActivity().getSystemService(Context.TELEPHONY_SERVICE);
-            for (int i = 0; i < mPhoneStateListeners.size(); i++) {
-                mPhone.listen(mPhoneStateListeners.valueAt(i),
-                        PhoneStateListener.LISTEN_SERVICE_STATE
-                                | PhoneStateListener.LISTEN_SIGNAL_STRENGTHS
-                                | PhoneStateListener.LISTEN_DATA_CONNECTION_STATE
-                );
+            mTelephonyStateHub.registerCallback(mTelephonyCallback);
+            mDataSubSwitchController.registerCallback(mSwitchCallback);
+            mRadioReady = mRadioReadyTracker.isRadioReady();
+            if (!mRadioReady) {
+                mRadioReadyTracker.addCallback(mRadioReadyCallback);
             }
-            mRadioReady = SetupWizardUtils.isRadioReady(mContext, null);
+            mCurrentDataPhoneId = mSubscriptionManager.getDefaultDataPhoneId();
             updateSignalStrengths();
             updateCurrentDataSub();
             checkForRadioReady();
             if (mRadioReady) {
                 checkSimChangingState();
             }
-            // Register for DDS changes
-            IntentFilter filter = new IntentFilter();
-            filter.addAction(TelephonyIntents.ACTION_DEFAULT_DATA_SUBSCRIPTION_CHANGED);
-            getActivity().registerReceiver(mIntentReceiver, filter, null, null);
-
         }
 
         @Override
         public void onPause() {
             super.onPause();
             mIsAttached = false;
-            for (int i = 0; i < mPhoneStateListeners.size(); i++) {
-                mPhone.listen(mPhoneStateListeners.valueAt(i), PhoneStateListener.LISTEN_NONE);
-            }
-            getActivity().unregisterReceiver(mIntentReceiver);
+            mTelephonyStateHub.unregisterCallback(mTelephonyCallback);
+            mDataSubSwitchController.unregisterCallback(mSwitchCallback);
+            mRadioReadyTracker.removeCallback(mRadioReadyCallback);
+            mHandler.removeCallbacks(mSignalUpdateRunnable);
         }
 
         private void ddsHasChanged() {
-            mCurrentDataPhoneId = mSubscriptionManager.getDefaultDataPhoneId();
-            if (mCurrentDataPhoneId == sChangingToDataPhoneId) {
-                hideProgress();
-                enableViews(true);
+            final int dataPhoneId = mSubscriptionManager.getDefaultDataPhoneId();
+            // In case the default sub changes from elsewhere. This shouldn't happen,
+            // but testcases can induce this.
+            if (mCurrentDataPhoneId != dataPhoneId) {
+                mCurrentDataPhoneId = dataPhoneId;
+                updateCurrentDataSub();
             }
+            checkSimChangingState();
         }
 
-        private PhoneStateListener createPhoneStateListener(final SubscriptionInfo subInfoRecord) {
-            return new PhoneStateListener(subInfoRecord.getSubscriptionId()) {
+        private final DataSubSwitchController.Callback mSwitchCallback =
+                new DataSubSwitchController.Callback() {
+            @Override
+            public void onSwitchStateChanged(int state, int targetPhoneId) {
+                mCurrentDataPhoneId = mSubscriptionManager.getDefaultDataPhoneId();
+                updateCurrentDataSub();
+                checkSimChangingState();
+                if (state == DataSubSwitchController.STATE_FAILED && getActivity() != null) {
+                    Toast.makeText(getActivity(), R.string.data_sim_switch_failed,
+                            Toast.LENGTH_SHORT).show();
+                }
+            }
+        };
 
-                @Override
-                public void onSignalStrengthsChanged(SignalStrength signalStrength) {
-                    mSignalStrengths.put(subInfoRecord.getSimSlotIndex(), signalStrength);
-                    updateSignalStrength(subInfoRecord);
+        private SimRow getSimRow(int subId) {
+            for (int i = 0; i < mSimRows.size(); i++) {
+                SimRow simRow = mSimRows.valueAt(i);
+                if (simRow.mSubInfoRecord.getSubscriptionId() == subId) {
+                    return simRow;
                 }
+            }
+            return null;
+        }
+
+        private final TelephonyStateHub.Callback mTelephonyCallback =
+                new TelephonyStateHub.SimpleCallback() {
 
                 @Override
-                public void onServiceStateChanged(ServiceState state) {
-                    mRadioReady = SetupWizardUtils.isRadioReady(mContext, state);
-                    checkForRadioReady();
-                    mServiceStates.put(subInfoRecord.getSimSlotIndex(), state);
-                    updateSignalStrength(subInfoRecord);
+                public void onSignalStrengthsChanged(int subId, SignalStrength signalStrength) {
+                    SimRow simRow = getSimRow(subId);
+                    if (simRow != null) {
+                        scheduleSignalUpdate(simRow);
+                    }
                 }
 
                 @Override
-                public void onDataConnectionStateChanged(int state) {
-                    final int dataPhoneId = mSubscriptionManager.getDefaultDataPhoneId();
-                    // In case the default sub changes from elsewhere. This shouldn't happen,
-                    // but testcases can induce this.
-                    if (dataPhoneId != mCurrentDataPhoneId &&
-                            dataPhoneId != sChangingToDataPhoneId) {
-                        sChangingToDataPhoneId = dataPhoneId;
-                        updateCurrentDataSub();
+                public void onServiceStateChanged(int subId, ServiceState state) {
+                    SimRow simRow = getSimRow(subId);
+                    if (simRow != null) {
+                        updateSimRow(simRow);
                     }
-                    if (mCurrentDataPhoneId != dataPhoneId) {
-                        mCurrentDataPhoneId = dataPhoneId;
-                        updateCurrentDataSub();
+                }
+
+                @Override
+                public void onDefaultDataSubChanged(int subId) {
+                    if (getActivity() != null) {
+                        ddsHasChanged();
                     }
-                    checkSimChangingState();
+                }
+
+                @Override
+                public void onDataConnectionStateChanged(int subId, int state) {
+                    ddsHasChanged();
                 }
             };
-        }
 
         private void checkForRadioReady() {
             if (mRadioReady) {
-                mHandler.removeCallbacks(mRadioReadyRunnable);
                 showPage();
                 checkSimChangingState();
-                return;
             } else {
                 if (mTitleView != null) {
                     mTitleView.setText(R.string.loading);
                 }
                 enableViews(false);
                 showProgress();
-                if (!mHandler.hasCallbacks(mRadioReadyRunnable)) {
-                    mHandler.postDelayed(mRadioReadyRunnable, SetupWizardApp.RADIO_READY_TIMEOUT);
-                }
             }
         }
 
@@ -321,18 +353,24 @@ public class ChooseDataSimPage extends SetupPage {
             }
         }
 
+        private void scheduleSignalUpdate(SimRow simRow) {
+            simRow.mSignalDirty = true;
+            if (!mHandler.hasCallbacks(mSignalUpdateRunnable)) {
+                final long elapsed = SystemClock.uptimeMillis() - mLastSignalUpdate;
+                mHandler.postDelayed(mSignalUpdateRunnable,
+                        Math.max(0, SIGNAL_UPDATE_INTERVAL_MS - elapsed));
+            }
+        }
+
         private void updateSignalStrengths() {
-            if (mIsAttached) {
-                for (int i = 0; i < mSubInfoRecords.size(); i++) {
-                    updateSignalStrength(mSubInfoRecords.valueAt(i));
-                }
+            for (int i = 0; i < mSimRows.size(); i++) {
+                updateSimRow(mSimRows.valueAt(i));
             }
         }
 
         private void changeDataSub(SubscriptionInfo subInfoRecord) {
-            if (sChangingToDataPhoneId != subInfoRecord.getSimSlotIndex()) {
-                sChangingToDataPhoneId = subInfoRecord.getSimSlotIndex();
-                mSubscriptionManager.setDefaultDataSubId(subInfoRecord.getSubscriptionId());
+            // Duplicate taps while a switch is pending are rejected by the controller
+            if (mDataSubSwitchController.requestSwitch(subInfoRecord)) {
                 setDataSubChecked(subInfoRecord);
             }
             checkSimChangingState();
@@ -340,7 +378,7 @@ public class ChooseDataSimPage extends SetupPage {
 
         private void checkSimChangingState() {
             if (mIsAttached && mRadioReady) {
-                if (mCurrentDataPhoneId != sChangingToDataPhoneId) {
+                if (mDataSubSwitchController.isPending()) {
                     showProgress();
                     enableViews(false);
                 } else {
@@ -351,103 +389,77 @@ public class ChooseDataSimPage extends SetupPage {
         }
 
         private void setDataSubChecked(SubscriptionInfo subInfoRecord) {
-            if (mIsAttached) {
-                for (int i = 0; i < mCheckBoxes.size(); i++) {
-                    mCheckBoxes.get(i).setChecked(subInfoRecord.getSimSlotIndex() == i);
-                }
-            }
+            mCheckedDataPhoneId = subInfoRecord.getSimSlotIndex();
+            updateSignalStrengths();
         }
 
         private void updateCurrentDataSub() {
-            if (mIsAttached) {
-                for (int i = 0; i < mSubInfoRecords.size(); i++) {
-                    SubscriptionInfo subInfoRecord = mSubInfoRecords.valueAt(i);
-                    mCheckBoxes.get(i).setChecked(mSubscriptionManager.getDefaultDataPhoneId()
-                            == subInfoRecord.getSimSlotIndex());
-                }
-            }
+            mCheckedDataPhoneId = mDataSubSwitchController.isPending()
+                    ? mDataSubSwitchController.getTargetPhoneId()
+                    : mSubscriptionManager.getDefaultDataPhoneId();
+            updateSignalStrengths();
         }
 
         private void enableViews(boolean enabled) {
             mDisabledForSwitch = !enabled;
-            enableRows(enabled);
+            updateSignalStrengths();
             mNextButton.setEnabled(enabled);
         }
 
-        private void enableRows(boolean enabled) {
-            for (int i = 0; i < mRows.size(); i++) {
-                final View v =  mRows.get(i);
-                v.setEnabled(enabled);
-                final SubscriptionInfo subInfoRecord = (SubscriptionInfo)v.getTag();
-                if (subInfoRecord != null) {
-                    updateCarrierText(subInfoRecord);
-                }
+        /**
+         * Derives what the row should show from the cached telephony state and
+         * only touches the views whose value actually changed.
+         */
+        private void updateSimRow(SimRow simRow) {
+            if (!mIsAttached) {
+                return;
+            }
+            final SubscriptionInfo subInfoRecord = simRow.mSubInfoRecord;
+            final int subId = subInfoRecord.getSubscriptionId();
+            final int slot = subInfoRecord.getSimSlotIndex();
+            final ServiceState serviceState = mTelephonyStateHub.getServiceState(subId);
+            final SignalStrength signalStrength = mTelephonyStateHub.getSignalStrength(subId);
+
+            int signalResId = simRow.mSignalResId;
+            if (!hasService(serviceState)) {
+                signalResId = R.drawable.ic_signal_no_signal;
+            } else if (signalStrength != null) {
+                signalResId = getSignalResId(signalStrength.getLevel());
             }
-        }
 
-        private void updateCarrierText(SubscriptionInfo subInfoRecord) {
-            if (mIsAttached) {
-                String name = mPhone.getNetworkOperatorName(subInfoRecord.getSubscriptionId());
-                ServiceState serviceState = mServiceStates.get(subInfoRecord.getSimSlotIndex());
-                final int slot = subInfoRecord.getSimSlotIndex();
-                final View v = mRows.get(slot);
-                if (TextUtils.isEmpty(name)) {
-                    if (serviceState != null && serviceState.isEmergencyOnly()) {
-                        name = getString(R.string.setup_mobile_data_emergency_only);
-                    } else {
-                        name = getString(R.string.setup_mobile_data_no_service);
-                    }
-                    if (v != null) {
-                        v.setEnabled(false);
-                    }
+            String name = mPhone.getNetworkOperatorName(subId);
+            final boolean hasName = !TextUtils.isEmpty(name);
+            if (!hasName) {
+                if (serviceState != null && serviceState.isEmergencyOnly()) {
+                    name = getString(R.string.setup_mobile_data_emergency_only);
                 } else {
-                    if (v != null && !mDisabledForSwitch) {
-                        v.setEnabled(true);
-                    }
+                    name = getString(R.string.setup_mobile_data_no_service);
                 }
-                String formattedName =
-                        getString(R.string.data_sim_name,
-                                slot + 1, name);
-                mNameViews.get(slot).setText(formattedName);
             }
+
+            simRow.bind(signalResId,
+                    getString(R.string.data_sim_name, slot + 1, name),
+                    hasName && !mDisabledForSwitch,
+                    slot == mCheckedDataPhoneId);
         }
 
-        private void updateSignalStrength(SubscriptionInfo subInfoRecord) {
-            if (mIsAttached) {
-                ImageView signalView = mSignalViews.get(subInfoRecord.getSimSlotIndex());
-                SignalStrength signalStrength = mSignalStrengths.get(subInfoRecord.getSimSlotIndex());
-                if (!hasService(subInfoRecord)) {
-                    signalView.setImageResource(R.drawable.ic_signal_no_signal);
-                } else {
-                    if (signalStrength != null) {
-                        int resId;
-                        switch (signalStrength.getLevel()) {
-                            case 4:
-                                resId = R.drawable.ic_signal_4;
-                                break;
-                            case 3:
-                                resId = R.drawable.ic_signal_3;
-                                break;
-                            case 2:
-                                resId = R.drawable.ic_signal_2;
-                                break;
-                            case 1:
-                                resId = R.drawable.ic_signal_1;
-                                break;
-                            default:
-                                resId = R.drawable.ic_signal_0;
-                                break;
-                        }
-                        signalView.setImageResource(resId);
-                    }
-                }
-                updateCarrierText(subInfoRecord);
+        private static int getSignalResId(int level) {
+            switch (level) {
+                case 4:
+                    return R.drawable.ic_signal_4;
+                case 3:
+                    return R.drawable.ic_signal_3;
+                case 2:
+                    return R.drawable.ic_signal_2;
+                case 1:
+                    return R.drawable.ic_signal_1;
+                default:
+                    return R.drawable.ic_signal_0;
             }
         }
 
-        private boolean hasService(SubscriptionInfo subInfoRecord) {
+        private static boolean hasService(ServiceState serviceState) {
             boolean retVal;
-            ServiceState serviceState = mServiceStates.get(subInfoRecord.getSimSlotIndex());
             if (serviceState != null) {
                 // Consider the device to be in service if either voice or data service is available.
                 // Some SIM cards are marketed as data-only and do not support voice service, and on
@@ -470,16 +482,54 @@ public class ChooseDataSimPage extends SetupPage {
             return retVal;
         }
 
-        private BroadcastReceiver mIntentReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                final Activity activity = getActivity();
-                if (activity != null) {
-                    ddsHasChanged();
-                }
+        /**
+         * Views of a single sim slot together with the values they currently show.
+         */
+        private static class SimRow {
+
+            private final SubscriptionInfo mSubInfoRecord;
+            private final View mRow;
+            private final TextView mNameView;
+            private final ImageView mSignalView;
+            private final CheckBox mCheckBox;
+
+            private int mSignalResId = R.drawable.ic_signal_0;
+            private String mCarrierText;
+            private boolean mEnabled = true;
+            private boolean mChecked = false;
+
+            private boolean mSignalDirty = false;
+
+            private SimRow(SubscriptionInfo subInfoRecord, View row) {
+                mSubInfoRecord = subInfoRecord;
+                mRow = row;
+                mNameView = (TextView) row.findViewById(R.id.sim_title);
+                mSignalView = (ImageView) row.findViewById(R.id.signal);
+                mCheckBox = (CheckBox) row.findViewById(R.id.enable_check);
+                mEnabled = row.isEnabled();
+                mChecked = mCheckBox.isChecked();
             }
-        };
 
+            private void bind(int signalResId, String carrierText, boolean enabled,
+                    boolean checked) {
+                if (signalResId != mSignalResId) {
+                    mSignalResId = signalResId;
+                    mSignalView.setImageResource(signalResId);
+                }
+                if (!TextUtils.equals(carrierText, mCarrierText)) {
+                    mCarrierText = carrierText;
+                    mNameView.setText(carrierText);
+                }
+                if (enabled != mEnabled) {
+                    mEnabled = enabled;
+                    mRow.setEnabled(enabled);
+                }
+                if (checked != mChecked) {
+                    mChecked = checked;
+                    mCheckBox.setChecked(checked);
+                }
+            }
+        }
     }
 
 }
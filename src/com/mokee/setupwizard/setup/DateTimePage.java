@@ -42,14 +42,13 @@ import android.widget.TextView;
 import android.widget.TimePicker;
 
 import com.mokee.setupwizard.R;
+import com.mokee.setupwizard.core.TimeZoneListBuilder;
 import com.mokee.setupwizard.ui.SetupPageFragment;
 
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -59,15 +58,15 @@ public class DateTimePage extends SetupPage {
 
     public static final String TAG = "DateTimePage";
 
+    // Set ahead of time instead of picked, value: String time zone id
+    public static final String KEY_TIMEZONE = "timezone";
+
     private static final String KEY_ID = "id";  // value: String
     private static final String KEY_DISPLAYNAME = "name";  // value: String
     private static final String KEY_GMT = "gmt";  // value: String
     private static final String KEY_OFFSET = "offset";  // value: int (Integer)
     private static final String XMLTAG_TIMEZONE = "timezone";
 
-    private static final int HOURS_1 = 60 * 60000;
-
-
     public DateTimePage(Context context, SetupDataCallbacks callbacks) {
         super(context, callbacks);
     }
@@ -95,6 +94,21 @@ public class DateTimePage extends SetupPage {
         return R.string.setup_datetime;
     }
 
+    @Override
+    public void onFinishSetup() {
+        final String timeZone = getData().getString(KEY_TIMEZONE);
+        if (timeZone == null) {
+            return;
+        }
+        getCallbacks().addFinishRunnable(TAG, new Runnable() {
+            @Override
+            public void run() {
+                AlarmManager alarm = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+                alarm.setTimeZone(timeZone);
+            }
+        });
+    }
+
     public static class DateTimeFragment extends SetupPageFragment
             implements TimePickerDialog.OnTimeSetListener, DatePickerDialog.OnDateSetListener {
 
@@ -238,10 +252,17 @@ public class DateTimePage extends SetupPage {
         final String[] from = new String[] {KEY_DISPLAYNAME, KEY_GMT};
         final int[] to = new int[] {android.R.id.text1, android.R.id.text2};
 
-        final String sortKey = (sortedByName ? KEY_DISPLAYNAME : KEY_OFFSET);
-        final TimeZoneComparator comparator = new TimeZoneComparator(sortKey);
-        final List<HashMap<String, Object>> sortedList = getZones(context);
-        Collections.sort(sortedList, comparator);
+        final List<TimeZoneListBuilder.Entry> entries = getZones(context).build(sortedByName);
+        final List<HashMap<String, Object>> sortedList =
+                new ArrayList<HashMap<String, Object>>(entries.size());
+        for (TimeZoneListBuilder.Entry entry : entries) {
+            final HashMap<String, Object> map = new HashMap<String, Object>();
+            map.put(KEY_ID, entry.mId);
+            map.put(KEY_DISPLAYNAME, entry.mDisplayName);
+            map.put(KEY_GMT, entry.mGmt);
+            map.put(KEY_OFFSET, entry.mOffset);
+            sortedList.add(map);
+        }
         final SimpleAdapter adapter = new SimpleAdapter(context,
                 sortedList,
                 R.layout.date_time_setup_custom_list_item_2,
@@ -251,9 +272,9 @@ public class DateTimePage extends SetupPage {
         return adapter;
     }
 
-    private static List<HashMap<String, Object>> getZones(Context context) {
-        final List<HashMap<String, Object>> myData = new ArrayList<HashMap<String, Object>>();
-        final long date = Calendar.getInstance().getTimeInMillis();
+    private static TimeZoneListBuilder getZones(Context context) {
+        final TimeZoneListBuilder builder =
+                new TimeZoneListBuilder(Calendar.getInstance().getTimeInMillis());
         try {
             XmlResourceParser xrp = context.getResources().getXml(R.xml.timezones);
             while (xrp.next() != XmlResourceParser.START_TAG)
@@ -262,14 +283,14 @@ public class DateTimePage extends SetupPage {
             while (xrp.getEventType() != XmlResourceParser.END_TAG) {
                 while (xrp.getEventType() != XmlResourceParser.START_TAG) {
                     if (xrp.getEventType() == XmlResourceParser.END_DOCUMENT) {
-                        return myData;
+                        return builder;
                     }
                     xrp.next();
                 }
                 if (xrp.getName().equals(XMLTAG_TIMEZONE)) {
                     String id = xrp.getAttributeValue(0);
                     String displayName = xrp.nextText();
-                    addItem(myData, id, displayName, date);
+                    builder.add(id, displayName);
                 }
                 while (xrp.getEventType() != XmlResourceParser.END_TAG) {
                     xrp.next();
@@ -283,41 +304,7 @@ public class DateTimePage extends SetupPage {
             Log.e(TAG, "Unable to read timezones.xml file");
         }
 
-        return myData;
-    }
-
-    private static void addItem(
-            List<HashMap<String, Object>> myData, String id, String displayName, long date) {
-        final HashMap<String, Object> map = new HashMap<String, Object>();
-        map.put(KEY_ID, id);
-        map.put(KEY_DISPLAYNAME, displayName);
-        final TimeZone tz = TimeZone.getTimeZone(id);
-        final int offset = tz.getOffset(date);
-        final int p = Math.abs(offset);
-        final StringBuilder name = new StringBuilder();
-        name.append("GMT");
-
-        if (offset < 0) {
-            name.append('-');
-        } else {
-            name.append('+');
-        }
-
-        name.append(p / (HOURS_1));
-        name.append(':');
-
-        int min = p / 60000;
-        min %= 60;
-
-        if (min < 10) {
-            name.append('0');
-        }
-        name.append(min);
-
-        map.put(KEY_GMT, name.toString());
-        map.put(KEY_OFFSET, offset);
-
-        myData.add(map);
+        return builder;
     }
 
     private static int getTimeZoneIndex(SimpleAdapter adapter, TimeZone tz) {
@@ -362,39 +349,6 @@ public class DateTimePage extends SetupPage {
         }
     }
 
-    private static class TimeZoneComparator implements Comparator<HashMap<?, ?>> {
-        private String mSortingKey;
-
-        public TimeZoneComparator(String sortingKey) {
-            mSortingKey = sortingKey;
-        }
-
-        public void setSortingKey(String sortingKey) {
-            mSortingKey = sortingKey;
-        }
-
-        public int compare(HashMap<?, ?> map1, HashMap<?, ?> map2) {
-            Object value1 = map1.get(mSortingKey);
-            Object value2 = map2.get(mSortingKey);
-
-            /*
-             * This should never happen, but just in-case, put non-comparable
-             * items at the end.
-             */
-            if (!isComparable(value1)) {
-                return isComparable(value2) ? 1 : 0;
-            } else if (!isComparable(value2)) {
-                return -1;
-            }
-
-            return ((Comparable) value1).compareTo(value2);
-        }
-
-        private boolean isComparable(Object value) {
-            return (value != null) && (value instanceof Comparable);
-        }
-    }
-
     public static class TimePickerFragment extends DialogFragment implements TimePickerDialog.OnTimeSetListener {
 
         private static String TAG = TimePickerFragment.class.getSimpleName();
@@ -16,21 +16,13 @@
 
 package com.mokee.setupwizard.setup;
 
-import java.util.List;
-
 import android.app.Fragment;
 import android.app.FragmentManager;
 import android.content.Context;
-import android.content.ContentResolver;
-import android.mokee.utils.MoKeeUtils;
 import android.os.Bundle;
-import android.provider.Settings;
-import android.view.inputmethod.InputMethodInfo;
-import android.view.inputmethod.InputMethodManager;
 
 import com.mokee.setupwizard.R;
 import com.mokee.setupwizard.ui.SetupPageFragment;
-import com.mokee.setupwizard.util.InputMethodItem;
 
 public class FinishPage extends SetupPage {
 
@@ -86,26 +78,4 @@ public class FinishPage extends SetupPage {
             return R.layout.setup_finished_page;
         }
     }
-
-    @Override
-    public void onFinishSetup() {
-        if (MoKeeUtils.isSupportLanguage(true)) {
-            InputMethodManager manager = (InputMethodManager)mContext.getSystemService(Context.INPUT_METHOD_SERVICE);
-            List<InputMethodInfo> infoList = manager.getInputMethodList();
-            ContentResolver mContentResolver = mContext.getContentResolver();
-            String mEnabledIM = Settings.Secure.getString(mContentResolver, Settings.Secure.ENABLED_INPUT_METHODS);
-            int total = infoList == null ? 0 : infoList.size();
-            for (int index = 0; index < total; index++) {
-                InputMethodItem mInputMethodItem = new InputMethodItem(mContext, infoList.get(index));
-                String mDefaultIM = mInputMethodItem.getImPackage();
-                if (mDefaultIM.contains("com.sohu.inputmethod.sogou") || mDefaultIM.contains("com.iflytek.inputmethod") || mDefaultIM.contains("com.google.android.apps.inputmethod.pinyin") || mDefaultIM.contains("com.baidu.input")) {
-                    Settings.Secure.putString(mContentResolver, Settings.Secure.DEFAULT_INPUT_METHOD, mDefaultIM);
-                    if (!mEnabledIM.contains(mDefaultIM)) {
-                        Settings.Secure.putString(mContentResolver, Settings.Secure.ENABLED_INPUT_METHODS, mEnabledIM + ":" + mDefaultIM);
-                    }
-                    break;
-                }
-            }
-        }
-    }
 }
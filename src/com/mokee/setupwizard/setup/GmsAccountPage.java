@@ -25,11 +25,9 @@ import android.app.Activity;
 import android.app.ActivityOptions;
 import android.app.Fragment;
 import android.app.FragmentManager;
-import android.content.ContentQueryMap;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
 import android.provider.Settings;
 import android.service.persistentdata.PersistentDataBlockManager;
@@ -38,11 +36,11 @@ import android.util.Log;
 import com.mokee.setupwizard.R;
 import com.mokee.setupwizard.SetupWizardApp;
 import com.mokee.setupwizard.ui.LoadingFragment;
+import com.mokee.setupwizard.util.SettingsWatcher;
 import com.mokee.setupwizard.util.SetupWizardUtils;
 
 import java.io.IOException;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.concurrent.Callable;
 
 public class GmsAccountPage extends SetupPage {
 
@@ -52,32 +50,34 @@ public class GmsAccountPage extends SetupPage {
     private static final String RESTORE_WIZARD_SCRIPT =
             "android.resource://com.google.android.setupwizard/xml/wizard_script";
 
-    private ContentQueryMap mContentQueryMap;
-    private Observer mSettingsObserver;
+    private static final Uri BACKUP_ENABLED_URI =
+            Settings.Secure.getUriFor(Settings.Secure.BACKUP_ENABLED);
+    private static final Uri BACKUP_AUTO_RESTORE_URI =
+            Settings.Secure.getUriFor(Settings.Secure.BACKUP_AUTO_RESTORE);
 
-    private boolean mBackupEnabled = false;
+    private final SettingsWatcher mSettingsWatcher;
+
+    private final SettingsWatcher.Listener mSettingsListener = new SettingsWatcher.Listener() {
+        @Override
+        public void onSettingChanged(Uri uri) {
+            mBackupEnabled = (mSettingsWatcher.getInt(BACKUP_AUTO_RESTORE_URI, 0) == 1) ||
+                    (mSettingsWatcher.getInt(BACKUP_ENABLED_URI, 0) == 1);
+        }
+    };
+
+    private volatile boolean mBackupEnabled = false;
+
+    // No account was added, the next step first checks it may be skipped
+    private boolean mCheckCanSkip = false;
 
     private Fragment mFragment;
 
     public GmsAccountPage(final Context context, SetupDataCallbacks callbacks) {
         super(context, callbacks);
-        final ContentResolver res = context.getContentResolver();
-        mBackupEnabled = Settings.Secure.getInt(res,
-                Settings.Secure.BACKUP_ENABLED, 0) == 1;
-        mSettingsObserver = new Observer() {
-            public void update(Observable o, Object arg) {
-                mBackupEnabled = (Settings.Secure.getInt(res,
-                        Settings.Secure.BACKUP_AUTO_RESTORE, 0) == 1) ||
-                        (Settings.Secure.getInt(res,
-                                Settings.Secure.BACKUP_ENABLED, 0) == 1);
-            }
-        };
-        Cursor settingsCursor = res.query(Settings.Secure.CONTENT_URI, null,
-                "(" + Settings.System.NAME + "=? OR " + Settings.System.NAME + "=?)",
-                new String[]{Settings.Secure.BACKUP_AUTO_RESTORE, Settings.Secure.BACKUP_ENABLED},
-                null);
-        mContentQueryMap = new ContentQueryMap(settingsCursor, Settings.System.NAME, true, null);
-        mContentQueryMap.addObserver(mSettingsObserver);
+        mSettingsWatcher = SettingsWatcher.getInstance(context);
+        mSettingsWatcher.watch(BACKUP_ENABLED_URI, mSettingsListener);
+        mSettingsWatcher.watch(BACKUP_AUTO_RESTORE_URI, mSettingsListener);
+        mBackupEnabled = mSettingsWatcher.getInt(BACKUP_ENABLED_URI, 0) == 1;
     }
 
     @Override
@@ -135,28 +135,18 @@ public class GmsAccountPage extends SetupPage {
 
     @Override
     public void onFinishSetup() {
-        try {
-            if (mContentQueryMap != null) {
-                mContentQueryMap.close();
-            }
-        } catch (Exception e) {
-            Log.wtf(TAG, e.toString());
-        }
+        mSettingsWatcher.unwatch(BACKUP_ENABLED_URI, mSettingsListener);
+        mSettingsWatcher.unwatch(BACKUP_AUTO_RESTORE_URI, mSettingsListener);
     }
 
     private void handleResult(int requestCode, int resultCode) {
         if (resultCode == Activity.RESULT_CANCELED) {
             getCallbacks().onPreviousPage();
         }  else {
-            if (resultCode == Activity.RESULT_OK) {
-                getCallbacks().onNextPage();
-            } else {
-                if (canSkip()) {
-                    getCallbacks().onNextPage();
-                } else {
-                    getCallbacks().onPreviousPage();
-                }
+            if (resultCode != Activity.RESULT_OK) {
+                mCheckCanSkip = true;
             }
+            getCallbacks().onNextPage();
             if (SetupWizardUtils.accountExists(mContext, SetupWizardApp.ACCOUNT_TYPE_GMS)) {
                 setHidden(true);
             }
@@ -192,6 +182,27 @@ public class GmsAccountPage extends SetupPage {
         }
     }
 
+    @Override
+    public PageAction createNextAction() {
+        if (!mCheckCanSkip) {
+            return null;
+        }
+        mCheckCanSkip = false;
+        // Reading the persistent data block is a binder call, keep it off
+        // the main thread
+        return new PageAction(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return !canSkip();
+            }
+        }) {
+            @Override
+            protected void onHandled() {
+                getCallbacks().onPreviousPage();
+            }
+        };
+    }
+
     public boolean canSkip() {
         final PersistentDataBlockManager pdbManager = (PersistentDataBlockManager)
                 mContext.getSystemService(Context.PERSISTENT_DATA_BLOCK_SERVICE);
@@ -231,11 +242,8 @@ public class GmsAccountPage extends SetupPage {
                         } finally {
                             if (error && getCallbacks().
                                     isCurrentPage(GmsAccountPage.this)) {
-                                if (canSkip()) {
-                                    getCallbacks().onNextPage();
-                                } else {
-                                    getCallbacks().onPreviousPage();
-                                }
+                                mCheckCanSkip = true;
+                                getCallbacks().onNextPage();
                             }
                         }
                     }
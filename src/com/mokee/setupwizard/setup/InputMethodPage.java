@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.setup;
+
+import android.app.Fragment;
+import android.app.FragmentManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.mokee.utils.MoKeeUtils;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.provider.Settings;
+import android.text.TextUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
+import android.widget.ImageView;
+import android.widget.ListView;
+import android.widget.RadioButton;
+import android.widget.TextView;
+
+import com.mokee.setupwizard.R;
+import com.mokee.setupwizard.ui.SetupPageFragment;
+import com.mokee.setupwizard.util.InputMethodItem;
+import com.mokee.setupwizard.util.InputMethodResolver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class InputMethodPage extends SetupPage {
+
+    public static final String TAG = "InputMethodPage";
+
+    public static final String KEY_INPUT_METHOD = "input_method";
+
+    public InputMethodPage(Context context, SetupDataCallbacks callbacks) {
+        super(context, callbacks);
+    }
+
+    @Override
+    public Fragment getFragment(FragmentManager fragmentManager, int action) {
+        Fragment fragment = fragmentManager.findFragmentByTag(getKey());
+        if (fragment == null) {
+            Bundle args = new Bundle();
+            args.putString(Page.KEY_PAGE_ARGUMENT, getKey());
+            args.putInt(Page.KEY_PAGE_ACTION, action);
+            fragment = new InputMethodFragment();
+            fragment.setArguments(args);
+        }
+        return fragment;
+    }
+
+    @Override
+    public String getKey() {
+        return TAG;
+    }
+
+    @Override
+    public int getTitleResId() {
+        return R.string.setup_input_method;
+    }
+
+    @Override
+    public void onFinishSetup() {
+        final String chosen = getData().getString(KEY_INPUT_METHOD);
+        final boolean supportLanguage = MoKeeUtils.isSupportLanguage(true);
+        if (chosen == null && !supportLanguage) {
+            return;
+        }
+        getCallbacks().addFinishRunnable(TAG, new Runnable() {
+            @Override
+            public void run() {
+                String defaultIM = chosen;
+                if (defaultIM == null) {
+                    // Never picked one, fall back to a known Chinese IME
+                    InputMethodItem item =
+                            InputMethodResolver.getInstance(mContext).getPreferredInputMethod();
+                    defaultIM = item != null ? item.getImPackage() : null;
+                }
+                if (defaultIM != null) {
+                    setDefaultInputMethod(defaultIM);
+                }
+            }
+        });
+    }
+
+    private void setDefaultInputMethod(String defaultIM) {
+        ContentResolver contentResolver = mContext.getContentResolver();
+        String enabledIM = Settings.Secure.getString(contentResolver,
+                Settings.Secure.ENABLED_INPUT_METHODS);
+        Settings.Secure.putString(contentResolver, Settings.Secure.DEFAULT_INPUT_METHOD, defaultIM);
+        if (enabledIM == null || !enabledIM.contains(defaultIM)) {
+            Settings.Secure.putString(contentResolver, Settings.Secure.ENABLED_INPUT_METHODS,
+                    enabledIM == null ? defaultIM : enabledIM + ":" + defaultIM);
+        }
+    }
+
+    public static class InputMethodFragment extends SetupPageFragment {
+
+        // Retained with the fragment, so rotating does not reload anything
+        private final InputMethodAdapter mAdapter = new InputMethodAdapter();
+        private LoadTask mLoadTask;
+
+        private final AdapterView.OnItemClickListener mItemClickListener =
+                new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                final String selected = mAdapter.getItem(position).getImPackage();
+                mPage.getData().putString(KEY_INPUT_METHOD, selected);
+                mAdapter.setSelected(selected);
+            }
+        };
+
+        @Override
+        protected void initializePage() {
+            ListView listView = (ListView) mRootView.findViewById(android.R.id.list);
+            listView.setAdapter(mAdapter);
+            listView.setOnItemClickListener(mItemClickListener);
+            if (mLoadTask == null) {
+                mLoadTask = new LoadTask(getActivity());
+                mLoadTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            }
+        }
+
+        @Override
+        protected int getLayoutResource() {
+            return R.layout.input_method_page;
+        }
+
+        @Override
+        public void onResume() {
+            super.onResume();
+            final String chosen = mPage.getData().getString(KEY_INPUT_METHOD);
+            if (chosen != null) {
+                mAdapter.setSelected(chosen);
+            }
+        }
+
+        @Override
+        public void onDestroy() {
+            super.onDestroy();
+            if (mLoadTask != null) {
+                mLoadTask.cancel(false);
+            }
+        }
+
+        /**
+         * Lists the input methods as placeholders first, then publishes each
+         * one again once its label and icon are loaded.
+         */
+        private class LoadTask extends AsyncTask<Void, InputMethodItem, Void> {
+
+            private final Context mContext;
+            private volatile String mDefaultIM;
+
+            private LoadTask(Context context) {
+                mContext = context.getApplicationContext();
+            }
+
+            @Override
+            protected Void doInBackground(Void... params) {
+                final InputMethodResolver resolver = InputMethodResolver.getInstance(mContext);
+                InputMethodItem preferred = MoKeeUtils.isSupportLanguage(true)
+                        ? resolver.getPreferredInputMethod() : null;
+                mDefaultIM = preferred != null ? preferred.getImPackage()
+                        : Settings.Secure.getString(mContext.getContentResolver(),
+                                Settings.Secure.DEFAULT_INPUT_METHOD);
+                List<InputMethodItem> items = resolver.getInputMethods();
+                publishProgress(items.toArray(new InputMethodItem[items.size()]));
+                for (InputMethodItem item : items) {
+                    if (isCancelled()) {
+                        break;
+                    }
+                    if (!item.isImLabelLoaded() || !item.isImIconLoaded()) {
+                        item.getImLabel();
+                        item.getImIcon();
+                        publishProgress(item);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            protected void onProgressUpdate(InputMethodItem... items) {
+                if (mAdapter.mSelected == null) {
+                    mAdapter.mSelected = mDefaultIM;
+                }
+                mAdapter.addOrUpdate(items);
+            }
+        }
+    }
+
+    private static class InputMethodAdapter extends BaseAdapter {
+
+        private final ArrayList<InputMethodItem> mItems = new ArrayList<InputMethodItem>();
+        private String mSelected;
+
+        private void addOrUpdate(InputMethodItem... items) {
+            for (InputMethodItem item : items) {
+                if (!mItems.contains(item)) {
+                    mItems.add(item);
+                }
+            }
+            notifyDataSetChanged();
+        }
+
+        private void setSelected(String selected) {
+            mSelected = selected;
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public int getCount() {
+            return mItems.size();
+        }
+
+        @Override
+        public InputMethodItem getItem(int position) {
+            return mItems.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            RowHolder holder;
+            if (convertView == null) {
+                convertView = LayoutInflater.from(parent.getContext())
+                        .inflate(R.layout.input_method_row, parent, false);
+                holder = new RowHolder(convertView);
+                convertView.setTag(holder);
+            } else {
+                holder = (RowHolder) convertView.getTag();
+            }
+            final InputMethodItem item = mItems.get(position);
+            // Never load on the main thread, the task fills these in shortly
+            if (item.isImLabelLoaded()) {
+                holder.mTitle.setText(item.getImLabel());
+            } else {
+                holder.mTitle.setText(R.string.loading);
+            }
+            if (item.isImIconLoaded()) {
+                holder.mIcon.setImageDrawable(item.getImIcon());
+            } else {
+                holder.mIcon.setImageResource(android.R.drawable.sym_def_app_icon);
+            }
+            holder.mCheck.setChecked(TextUtils.equals(item.getImPackage(), mSelected));
+            return convertView;
+        }
+    }
+
+    private static class RowHolder {
+
+        private final ImageView mIcon;
+        private final TextView mTitle;
+        private final RadioButton mCheck;
+
+        private RowHolder(View row) {
+            mIcon = (ImageView) row.findViewById(R.id.icon);
+            mTitle = (TextView) row.findViewById(R.id.input_method_title);
+            mCheck = (RadioButton) row.findViewById(R.id.enable_check);
+        }
+    }
+}
@@ -19,135 +19,274 @@ package com.mokee.setupwizard.setup;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.res.XmlResourceParser;
 import android.net.ConnectivityManager;
 import android.os.SystemProperties;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 
 import android.util.Log;
+
 import com.android.internal.telephony.TelephonyIntents;
+import com.mokee.setupwizard.R;
+import com.mokee.setupwizard.core.PageFlow;
+import com.mokee.setupwizard.util.AnswerFile;
+import com.mokee.setupwizard.util.EventRing;
 import com.mokee.setupwizard.util.SetupWizardUtils;
 
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
 import java.util.ArrayList;
 
-public class MKSetupWizardData extends AbstractSetupData {
+public class MKSetupWizardData extends AbstractSetupData
+        implements PageFlow.DeviceState {
 
     private static final String TAG = MKSetupWizardData.class.getSimpleName();
 
+    private static final String PAGE_PACKAGE = "com.mokee.setupwizard.setup";
+    private static final String XMLTAG_PAGE = "page";
+    private static final String XMLTAG_HIDDEN_WHEN = "hidden-when";
+
+    private static PageFlow sPageFlow;
+
+    // Set from onNewPageList, which runs in the super constructor, so none
+    // of these may have an initializer
+    private int mState;
+    private SetupPage[] mFlowPages;
+    private int[] mFlowIndices;
+    private boolean[] mFlowHidden;
+
     private boolean mTimeSet = false;
     private boolean mTimeZoneSet = false;
-    private boolean mMobileDataEnabled;
 
     public MKSetupWizardData(Context context) {
         super(context);
-        mMobileDataEnabled = SetupWizardUtils.isMobileDataEnabled(context);
     }
 
     @Override
     protected PageList onNewPageList() {
-        ArrayList<Page> pages = new ArrayList<Page>();
-        if (SetupWizardUtils.hasLeanback(mContext)) {
-            pages.add(new BluetoothSetupPage(mContext, this));
-        }
-        pages.add(new WelcomePage(mContext, this));
-        pages.add(new WifiSetupPage(mContext, this));
-        if (SetupWizardUtils.hasTelephony(mContext)) {
-            pages.add(new SimCardMissingPage(mContext, this)
-                    .setHidden(isSimInserted()));
+        final PageFlow flow = getPageFlow(mContext);
+        final int capabilities = readCapabilities();
+        GmsAccountPage gmsAccountPage = null;
+        ArrayList<SetupPage> pages = new ArrayList<SetupPage>();
+        ArrayList<Integer> indices = new ArrayList<Integer>();
+        for (int i = 0; i < flow.size(); i++) {
+            if (flow.isIncluded(i, capabilities)) {
+                SetupPage page = newPage(flow.getClassName(i));
+                if (page instanceof GmsAccountPage) {
+                    gmsAccountPage = (GmsAccountPage) page;
+                }
+                pages.add(page);
+                indices.add(i);
+            }
         }
-        if (SetupWizardUtils.isMultiSimDevice(mContext)) {
-            pages.add(new ChooseDataSimPage(mContext, this)
-                    .setHidden(!allSimsInserted()));
+        mState = PageFlow.readState(this, gmsAccountPage != null && gmsAccountPage.canSkip());
+        mFlowPages = pages.toArray(new SetupPage[pages.size()]);
+        mFlowIndices = new int[mFlowPages.length];
+        mFlowHidden = new boolean[mFlowPages.length];
+        for (int i = 0; i < mFlowPages.length; i++) {
+            mFlowIndices[i] = indices.get(i);
+            mFlowHidden[i] = flow.isHidden(mFlowIndices[i], mState);
+            if (mFlowHidden[i]) {
+                mFlowPages[i].setHidden(true);
+            }
         }
-        if (SetupWizardUtils.hasTelephony(mContext)) {
-            pages.add(new MobileDataPage(mContext, this)
-                    .setHidden(!isSimInserted() || mMobileDataEnabled));
+        return new PageList(mFlowPages);
+    }
+
+    private int readCapabilities() {
+        int capabilities = 0;
+        if (SetupWizardUtils.hasLeanback(mContext)) capabilities |= PageFlow.CAP_LEANBACK;
+        if (SetupWizardUtils.hasTelephony(mContext)) capabilities |= PageFlow.CAP_TELEPHONY;
+        if (SetupWizardUtils.isMultiSimDevice(mContext)) capabilities |= PageFlow.CAP_MULTI_SIM;
+        if (SetupWizardUtils.hasGMS(mContext)) capabilities |= PageFlow.CAP_GMS;
+        if (SetupWizardUtils.hasFingerprint(mContext)) capabilities |= PageFlow.CAP_FINGERPRINT;
+        if (SetupWizardUtils.isOwner()) capabilities |= PageFlow.CAP_OWNER;
+        return capabilities;
+    }
+
+    private SetupPage newPage(String className) {
+        try {
+            return Class.forName(className).asSubclass(SetupPage.class)
+                    .getConstructor(Context.class, SetupDataCallbacks.class)
+                    .newInstance(mContext, this);
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalStateException("Bad page " + className + " in page_flow.xml", e);
         }
-        if (SetupWizardUtils.hasGMS(mContext)) {
-            pages.add(new GmsAccountPage(mContext, this).setHidden(true));
+    }
+
+    /**
+     * The page flow from res/xml/page_flow.xml, read once per process.
+     */
+    private static synchronized PageFlow getPageFlow(Context context) {
+        if (sPageFlow != null) {
+            return sPageFlow;
         }
-        if (SetupWizardUtils.hasFingerprint(mContext) && SetupWizardUtils.isOwner()) {
-            pages.add(new FingerprintSetupPage(mContext, this));
+        PageFlow.Builder builder = new PageFlow.Builder();
+        XmlResourceParser xrp = context.getResources().getXml(R.xml.page_flow);
+        try {
+            int type;
+            while ((type = xrp.next()) != XmlResourceParser.END_DOCUMENT) {
+                if (type != XmlResourceParser.START_TAG) {
+                    continue;
+                }
+                if (XMLTAG_PAGE.equals(xrp.getName())) {
+                    String className = xrp.getAttributeValue(null, "class");
+                    if (className.startsWith(".")) {
+                        className = PAGE_PACKAGE + className;
+                    }
+                    builder.addPage(className,
+                            PageFlow.parseCapabilities(xrp.getAttributeValue(null, "requires")),
+                            xrp.getAttributeBooleanValue(null, "skip-when-hidden", false));
+                } else if (XMLTAG_HIDDEN_WHEN.equals(xrp.getName())) {
+                    builder.addHiddenWhen(
+                            PageFlow.parseState(xrp.getAttributeValue(null, "set")),
+                            PageFlow.parseState(xrp.getAttributeValue(null, "clear")));
+                }
+            }
+        } catch (XmlPullParserException | IOException e) {
+            // Nothing to fall back to, the wizard cannot run without pages
+            throw new IllegalStateException("Unable to read page_flow.xml", e);
+        } finally {
+            xrp.close();
         }
-        pages.add(new MoKeeSettingsPage(mContext, this));
-        pages.add(new OtherSettingsPage(mContext, this));
-        pages.add(new DateTimePage(mContext, this));
-        pages.add(new FinishPage(mContext, this));
-        return new PageList(pages.toArray(new SetupPage[pages.size()]));
+        sPageFlow = builder.build();
+        return sPageFlow;
     }
 
-
     @Override
     public void onReceive(Context context, Intent intent) {
+        EventRing.record(EventRing.EVENT_BROADCAST, intent.getAction());
         if (intent.getAction().equals(TelephonyIntents.ACTION_SIM_STATE_CHANGED)) {
-            showHideDataSimPage();
-            showHideSimMissingPage();
-            showHideMobileDataPage();
+            setState(PageFlow.STATE_SIM_INSERTED, isSimInserted());
+            setState(PageFlow.STATE_ALL_SIMS_INSERTED, allSimsInserted());
         } else if (intent.getAction()
                 .equals(ConnectivityManager.CONNECTIVITY_ACTION) ||
                 intent.getAction()
                         .equals(ConnectivityManager.CONNECTIVITY_ACTION_IMMEDIATE)) {
-            showHideMobileDataPage();
-            showHideAccountPages();
+            updateNetworkState();
+            prefetchCaptivePortalCheck();
         } else  if (intent.getAction()
                 .equals(TelephonyIntents.ACTION_ANY_DATA_CONNECTION_STATE_CHANGED)) {
-            showHideMobileDataPage();
-            showHideAccountPages();
+            updateNetworkState();
         } else if (intent.getAction().equals(Intent.ACTION_TIMEZONE_CHANGED) ||
                 intent.getAction().equals(TelephonyIntents.ACTION_NETWORK_SET_TIMEZONE)) {
             mTimeZoneSet = true;
-            showHideDateTimePage();
+            setState(PageFlow.STATE_TIMEZONE_SET, true);
         } else if (intent.getAction().equals(Intent.ACTION_TIME_CHANGED) ||
                 intent.getAction().equals(TelephonyIntents.ACTION_NETWORK_SET_TIME)) {
             mTimeSet = true;
-            showHideDateTimePage();
+            setState(PageFlow.STATE_TIME_SET, true);
         }
+        updateVisibility();
+    }
+
+    private void setState(int bit, boolean set) {
+        mState = set ? mState | bit : mState & ~bit;
     }
 
-    private void showHideAccountPages() {
-        boolean isConnected = SetupWizardUtils.isNetworkConnected(mContext);
-        GmsAccountPage gmsAccountPage =
-                (GmsAccountPage) getPage(GmsAccountPage.TAG);
+    private void updateNetworkState() {
+        setState(PageFlow.STATE_NETWORK_CONNECTED, isNetworkConnected());
+        GmsAccountPage gmsAccountPage = (GmsAccountPage) getPage(GmsAccountPage.TAG);
         if (gmsAccountPage != null) {
-            gmsAccountPage.setHidden(!isConnected && gmsAccountPage.canSkip());
+            setState(PageFlow.STATE_ACCOUNT_SKIPPABLE, gmsAccountPage.canSkip());
         }
     }
 
-    private void showHideSimMissingPage() {
-        SimCardMissingPage simCardMissingPage =
-                (SimCardMissingPage) getPage(SimCardMissingPage.TAG);
-        if (simCardMissingPage != null) {
-            if (isSimInserted()) {
-                simCardMissingPage.setHidden(true);
-                if (isCurrentPage(simCardMissingPage)) {
+    /**
+     * Runs every page's rules over the current state. Pages are only shown
+     * or hidden when their rules change their mind, so a page that hid
+     * itself stays hidden.
+     */
+    private void updateVisibility() {
+        final PageFlow flow = getPageFlow(mContext);
+        for (int i = 0; i < mFlowPages.length; i++) {
+            final int index = mFlowIndices[i];
+            final boolean hidden = flow.isHidden(index, mState);
+            if (hidden == mFlowHidden[i]) {
+                continue;
+            }
+            mFlowHidden[i] = hidden;
+            final SetupPage page = mFlowPages[i];
+            page.setHidden(hidden);
+            if (hidden && flow.isSkippedWhenHidden(index) && isCurrentPage(page)) {
+                onNextPage();
+            }
+        }
+    }
+
+    /**
+     * Moves on from a page that was hidden by its rules before it got on
+     * screen, e.g. when going back cancelled out the step that was to skip it.
+     */
+    @Override
+    public void onPageShown(Page page) {
+        super.onPageShown(page);
+        if (!isCurrentPage(page)) {
+            return;
+        }
+        final PageFlow flow = getPageFlow(mContext);
+        for (int i = 0; i < mFlowPages.length; i++) {
+            if (mFlowPages[i] == page) {
+                if (mFlowHidden[i] && flow.isSkippedWhenHidden(mFlowIndices[i])) {
                     onNextPage();
                 }
-            } else {
-                simCardMissingPage.setHidden(false);
+                return;
             }
         }
     }
 
-    private void showHideDataSimPage() {
-        ChooseDataSimPage chooseDataSimPage =
-                (ChooseDataSimPage) getPage(ChooseDataSimPage.TAG);
-        if (chooseDataSimPage != null) {
-            chooseDataSimPage.setHidden(!allSimsInserted());
-        }
+    /**
+     * Hands each answer to the page that would have asked for it, in one
+     * pass and without showing anything. The pages apply them along with
+     * everything else once setup finishes.
+     */
+    public void applyAnswers(AnswerFile answers) {
+        copyAnswer(answers, AnswerFile.KEY_LOCALE, WelcomePage.TAG, WelcomePage.KEY_LOCALE);
+        copyAnswer(answers, AnswerFile.KEY_TIMEZONE, DateTimePage.TAG, DateTimePage.KEY_TIMEZONE);
+        copyAnswer(answers, AnswerFile.KEY_DATA_SIM,
+                ChooseDataSimPage.TAG, ChooseDataSimPage.KEY_DATA_SIM_SLOT);
+        copyAnswer(answers, AnswerFile.KEY_MOBILE_DATA,
+                MobileDataPage.TAG, MobileDataPage.KEY_ENABLE_MOBILE_DATA);
+        copyAnswer(answers, AnswerFile.KEY_NAV_KEYS,
+                MoKeeSettingsPage.TAG, MoKeeSettingsPage.KEY_ENABLE_NAV_KEYS);
+        copyAnswer(answers, AnswerFile.KEY_DEFAULT_THEME,
+                MoKeeSettingsPage.TAG, MoKeeSettingsPage.KEY_APPLY_DEFAULT_THEME);
+        copyAnswer(answers, AnswerFile.KEY_LOCATION,
+                OtherSettingsPage.TAG, OtherSettingsPage.KEY_ENABLE_LOCATION);
+        copyAnswer(answers, AnswerFile.KEY_BACKUP,
+                OtherSettingsPage.TAG, OtherSettingsPage.KEY_ENABLE_BACKUP);
+        copyAnswer(answers, AnswerFile.KEY_INPUT_METHOD,
+                InputMethodPage.TAG, InputMethodPage.KEY_INPUT_METHOD);
+        answers.warnUnused();
+    }
+
+    /**
+     * Whether setup may finish without the account page, which is never
+     * the case on a device locked by factory reset protection.
+     */
+    public boolean canSkipAccount() {
+        GmsAccountPage gmsAccountPage = (GmsAccountPage) getPage(GmsAccountPage.TAG);
+        return gmsAccountPage == null || gmsAccountPage.canSkip();
     }
 
-    private void showHideMobileDataPage() {
-        MobileDataPage mobileDataPage =
-                (MobileDataPage) getPage(MobileDataPage.TAG);
-        if (mobileDataPage != null) {
-            mobileDataPage.setHidden(!isSimInserted() || mMobileDataEnabled);
+    private void copyAnswer(AnswerFile answers, String key, String pageKey, String dataKey) {
+        if (!answers.has(key)) {
+            return;
         }
+        Page page = getPage(pageKey);
+        if (page == null) {
+            Log.w(TAG, "Ignoring " + key + ", no " + pageKey + " on this device");
+            return;
+        }
+        answers.copyTo(key, page.getData(), dataKey);
     }
 
-    private void showHideDateTimePage() {
-        DateTimePage dateTimePage = (DateTimePage) getPage(DateTimePage.TAG);
-        if (dateTimePage != null) {
-            dateTimePage.setHidden(mTimeZoneSet & mTimeSet);
+    private void prefetchCaptivePortalCheck() {
+        WifiSetupPage wifiSetupPage = (WifiSetupPage) getPage(WifiSetupPage.TAG);
+        if (wifiSetupPage != null && isCurrentPage(wifiSetupPage)) {
+            wifiSetupPage.onConnectivityChanged();
         }
     }
 
@@ -166,8 +305,30 @@ public class MKSetupWizardData extends AbstractSetupData {
         return filter;
     }
 
+    @Override
+    public boolean isMobileDataEnabled() {
+        // Only read at start, turning it on from the page keeps the page
+        return SetupWizardUtils.isMobileDataEnabled(mContext);
+    }
+
+    @Override
+    public boolean isNetworkConnected() {
+        return SetupWizardUtils.isNetworkConnected(mContext);
+    }
+
+    @Override
+    public boolean isTimeZoneSet() {
+        return mTimeZoneSet;
+    }
+
+    @Override
+    public boolean isTimeSet() {
+        return mTimeSet;
+    }
+
     // We only care that one sim is inserted
-    private boolean isSimInserted() {
+    @Override
+    public boolean isSimInserted() {
         TelephonyManager tm = TelephonyManager.from(mContext);
         int simSlotCount = tm.getSimCount();
         for (int i = 0; i < simSlotCount; i++) {
@@ -188,7 +349,8 @@ public class MKSetupWizardData extends AbstractSetupData {
     }
 
     // We only care that each slot has a sim
-    private boolean allSimsInserted() {
+    @Override
+    public boolean allSimsInserted() {
         TelephonyManager tm = TelephonyManager.from(mContext);
         int simSlotCount = tm.getSimCount();
         for (int i = 0; i < simSlotCount; i++) {
@@ -126,7 +126,7 @@ public class MoKeeSettingsPage extends SetupPage {
 
     @Override
     public void onFinishSetup() {
-        getCallbacks().addFinishRunnable(new Runnable() {
+        getCallbacks().addFinishRunnable(TAG, new Runnable() {
             @Override
             public void run() {
                 if (getData().containsKey(KEY_ENABLE_NAV_KEYS)) {
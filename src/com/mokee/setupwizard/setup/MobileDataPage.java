@@ -20,11 +20,8 @@ import android.app.Fragment;
 import android.app.FragmentManager;
 import android.content.Context;
 import android.os.Bundle;
-import android.os.Handler;
-import android.telephony.PhoneStateListener;
 import android.telephony.ServiceState;
 import android.telephony.SignalStrength;
-import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.view.View;
@@ -36,14 +33,18 @@ import android.widget.Switch;
 import android.widget.TextView;
 
 import com.mokee.setupwizard.R;
-import com.mokee.setupwizard.SetupWizardApp;
 import com.mokee.setupwizard.ui.SetupPageFragment;
+import com.mokee.setupwizard.util.RadioReadyTracker;
 import com.mokee.setupwizard.util.SetupWizardUtils;
+import com.mokee.setupwizard.util.TelephonyStateHub;
 
 public class MobileDataPage extends SetupPage {
 
     public static final String TAG = "MobileDataPage";
 
+    // Set ahead of time instead of picked, value: boolean
+    public static final String KEY_ENABLE_MOBILE_DATA = "enable_mobile_data";
+
     public MobileDataPage(Context context, SetupDataCallbacks callbacks) {
         super(context, callbacks);
     }
@@ -71,6 +72,20 @@ public class MobileDataPage extends SetupPage {
         return R.string.setup_mobile_data;
     }
 
+    @Override
+    public void onFinishSetup() {
+        if (!getData().containsKey(KEY_ENABLE_MOBILE_DATA)) {
+            return;
+        }
+        final boolean enabled = getData().getBoolean(KEY_ENABLE_MOBILE_DATA);
+        getCallbacks().addFinishRunnable(TAG, new Runnable() {
+            @Override
+            public void run() {
+                SetupWizardUtils.setMobileDataEnabled(mContext, enabled);
+            }
+        });
+    }
+
     public static class MobileDataFragment extends SetupPageFragment {
 
         private ViewGroup mPageView;
@@ -81,6 +96,8 @@ public class MobileDataPage extends SetupPage {
         private TextView mNameView;
 
         private TelephonyManager mPhone;
+        private TelephonyStateHub mTelephonyStateHub;
+        private RadioReadyTracker mRadioReadyTracker;
         private SignalStrength mSignalStrength;
         private ServiceState mServiceState;
 
@@ -88,30 +105,37 @@ public class MobileDataPage extends SetupPage {
 
         private Context mContext;
 
-        private final Handler mHandler = new Handler();
-
-        private final Runnable mRadioReadyRunnable = new Runnable() {
+        private final RadioReadyTracker.Callback mRadioReadyCallback =
+                new RadioReadyTracker.Callback() {
             @Override
-            public void run() {
-                hideWaitForRadio();
+            public void onRadioReady() {
+                hideWaitForRadio(true);
             }
         };
 
-        private PhoneStateListener mPhoneStateListener =
-                new PhoneStateListener(SubscriptionManager.getDefaultDataSubId()) {
+        private final TelephonyStateHub.Callback mTelephonyCallback =
+                new TelephonyStateHub.SimpleCallback() {
 
                     @Override
-                    public void onSignalStrengthsChanged(SignalStrength signalStrength) {
-                        mSignalStrength = signalStrength;
-                        updateSignalStrength();
+                    public void onSignalStrengthsChanged(int subId,
+                            SignalStrength signalStrength) {
+                        if (subId == mTelephonyStateHub.getDefaultDataSubId()) {
+                            mSignalStrength = signalStrength;
+                            updateSignalStrength();
+                        }
                     }
 
                     @Override
-                    public void onServiceStateChanged(ServiceState state) {
-                        if (SetupWizardUtils.isRadioReady(mContext, state)) {
-                            hideWaitForRadio();
+                    public void onServiceStateChanged(int subId, ServiceState state) {
+                        if (subId == mTelephonyStateHub.getDefaultDataSubId()) {
+                            mServiceState = state;
+                            updateSignalStrength();
                         }
-                        mServiceState = state;
+                    }
+
+                    @Override
+                    public void onDefaultDataSubChanged(int subId) {
+                        loadCachedTelephonyState();
                         updateSignalStrength();
                     }
 
@@ -150,16 +174,20 @@ public class MobileDataPage extends SetupPage {
             mIsAttached = true;
             mContext = getActivity().getApplicationContext();
             mPhone = (TelephonyManager)getActivity().getSystemService(Context.TELEPHONY_SERVICE);
-            mPhone.listen(mPhoneStateListener,
-                    PhoneStateListener.LISTEN_SERVICE_STATE
-                            | PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
+            mTelephonyStateHub = TelephonyStateHub.getInstance(mContext);
+            mTelephonyStateHub.registerCallback(mTelephonyCallback);
+            mRadioReadyTracker = RadioReadyTracker.getInstance(mContext);
+            loadCachedTelephonyState();
             updateDataConnectionStatus();
             updateSignalStrength();
-            if (SetupWizardUtils.isRadioReady(mContext, null)) {
-                hideWaitForRadio();
-            } else if (mTitleView != null) {
-                mTitleView.setText(R.string.loading);
-                mHandler.postDelayed(mRadioReadyRunnable, SetupWizardApp.RADIO_READY_TIMEOUT);
+            if (mRadioReadyTracker.isRadioReady()) {
+                // The radio came up while we were on earlier pages, skip the fade
+                hideWaitForRadio(false);
+            } else {
+                if (mTitleView != null) {
+                    mTitleView.setText(R.string.loading);
+                }
+                mRadioReadyTracker.addCallback(mRadioReadyCallback);
             }
         }
 
@@ -167,26 +195,34 @@ public class MobileDataPage extends SetupPage {
         public void onPause() {
             super.onPause();
             mIsAttached = false;
-            mPhone.listen(mPhoneStateListener, PhoneStateListener.LISTEN_NONE);
+            mTelephonyStateHub.unregisterCallback(mTelephonyCallback);
+            mRadioReadyTracker.removeCallback(mRadioReadyCallback);
         }
 
-        private void hideWaitForRadio() {
+        private void loadCachedTelephonyState() {
+            final int subId = mTelephonyStateHub.getDefaultDataSubId();
+            mServiceState = mTelephonyStateHub.getServiceState(subId);
+            mSignalStrength = mTelephonyStateHub.getSignalStrength(subId);
+        }
+
+        private void hideWaitForRadio(boolean animate) {
             if (getUserVisibleHint() && mProgressBar.isShown()) {
-                mHandler.removeCallbacks(mRadioReadyRunnable);
                 if (mTitleView != null) {
                     mTitleView.setText(mPage.getTitleResId());
                 }
                 mProgressBar.setVisibility(View.GONE);
                 mPageView.setVisibility(View.VISIBLE);
-                mPageView.startAnimation(
-                        AnimationUtils.loadAnimation(getActivity(), R.anim.translucent_enter));
+                if (animate) {
+                    mPageView.startAnimation(
+                            AnimationUtils.loadAnimation(getActivity(), R.anim.translucent_enter));
+                }
             }
         }
 
         private void updateCarrierText() {
             if (mIsAttached) {
-                String name =
-                        mPhone.getNetworkOperatorName(SubscriptionManager.getDefaultDataSubId());
+                String name = mPhone.getNetworkOperatorName(
+                        mTelephonyStateHub.getDefaultDataSubId());
                 if (TextUtils.isEmpty(name)) {
                     if (mServiceState != null && mServiceState.isEmergencyOnly()) {
                         name = getString(R.string.setup_mobile_data_emergency_only);
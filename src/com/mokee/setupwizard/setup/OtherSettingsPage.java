@@ -19,17 +19,18 @@ package com.mokee.setupwizard.setup;
 import android.app.Fragment;
 import android.app.FragmentManager;
 import android.app.backup.IBackupManager;
-import android.content.ContentQueryMap;
 import android.content.ContentResolver;
 import android.content.Context;
-import android.database.Cursor;
 import android.location.LocationManager;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.provider.Settings;
 import android.text.SpannableString;
 import android.text.Spanned;
+import android.text.TextUtils;
 import android.text.method.LinkMovementMethod;
 import android.text.style.ClickableSpan;
 import android.view.View;
@@ -40,17 +41,21 @@ import com.mokee.setupwizard.R;
 import com.mokee.setupwizard.SetupWizardApp;
 import com.mokee.setupwizard.ui.SetupPageFragment;
 import com.mokee.setupwizard.ui.WebViewDialogFragment;
+import com.mokee.setupwizard.util.SettingsWatcher;
+import com.mokee.setupwizard.util.SettingsWriter;
 import com.mokee.setupwizard.util.SetupWizardUtils;
 
-import java.util.Observable;
-import java.util.Observer;
-
 public class OtherSettingsPage extends SetupPage {
 
-    private static final String TAG = "OtherSettingsPage";
+    public static final String TAG = "OtherSettingsPage";
+
+    // Set ahead of time instead of picked, value: boolean
+    public static final String KEY_ENABLE_LOCATION = "enable_location";
+    public static final String KEY_ENABLE_BACKUP = "enable_backup";
 
     private static final String PRIVACY_POLICY_URI =
             "https://www.google.com/intl/en/policies/privacy/?fg=1";
+    private static final String PRIVACY_POLICY_ASSET = "privacy_policy.html";
 
     public OtherSettingsPage(Context context, SetupDataCallbacks callbacks) {
         super(context, callbacks);
@@ -83,6 +88,34 @@ public class OtherSettingsPage extends SetupPage {
         }
     }
 
+    @Override
+    public void onFinishSetup() {
+        final Bundle data = getData();
+        if (!data.containsKey(KEY_ENABLE_LOCATION) && !data.containsKey(KEY_ENABLE_BACKUP)) {
+            return;
+        }
+        getCallbacks().addFinishRunnable(TAG, new Runnable() {
+            @Override
+            public void run() {
+                if (data.containsKey(KEY_ENABLE_LOCATION)) {
+                    final boolean enabled = data.getBoolean(KEY_ENABLE_LOCATION);
+                    final ContentResolver contentResolver = mContext.getContentResolver();
+                    Settings.Secure.setLocationProviderEnabled(contentResolver,
+                            LocationManager.GPS_PROVIDER, enabled);
+                    Settings.Secure.setLocationProviderEnabled(contentResolver,
+                            LocationManager.NETWORK_PROVIDER, enabled);
+                }
+                if (data.containsKey(KEY_ENABLE_BACKUP)) {
+                    IBackupManager backupManager = IBackupManager.Stub.asInterface(
+                            ServiceManager.getService(Context.BACKUP_SERVICE));
+                    try {
+                        backupManager.setBackupEnabled(data.getBoolean(KEY_ENABLE_BACKUP));
+                    } catch (RemoteException e) {}
+                }
+            }
+        });
+    }
+
     public static class OtherSettingsFragment extends SetupPageFragment {
 
         private View mBackupRow;
@@ -98,12 +131,37 @@ public class OtherSettingsPage extends SetupPage {
 
         private IBackupManager mBackupManager;
 
+        private static final Uri LOCATION_PROVIDERS_ALLOWED_URI =
+                Settings.Secure.getUriFor(Settings.Secure.LOCATION_PROVIDERS_ALLOWED);
+        private static final Uri BACKUP_ENABLED_URI =
+                Settings.Secure.getUriFor(Settings.Secure.BACKUP_ENABLED);
+
+        private static final String KEY_BACKUP_ENABLED = "backup_enabled";
+        private static final String KEY_LOCATION_PROVIDER_PREFIX = "location_provider_";
+
+        private SettingsWatcher mSettingsWatcher;
+        private SettingsWriter mSettingsWriter;
+
+        private final Handler mHandler = new Handler();
+
+        private final Runnable mUpdateTogglesRunnable = new Runnable() {
+            @Override
+            public void run() {
+                updateLocationToggles();
+                updateBackupToggle();
+            }
+        };
+
         // These provide support for receiving notification when Location Manager settings change.
         // This is necessary because the Network Location Provider can change settings
         // if the user does not confirm enabling the provider.
-        private ContentQueryMap mContentQueryMap;
-        private Observer mSettingsObserver;
-
+        private final SettingsWatcher.Listener mSettingsListener = new SettingsWatcher.Listener() {
+            @Override
+            public void onSettingChanged(Uri uri) {
+                mHandler.removeCallbacks(mUpdateTogglesRunnable);
+                mHandler.post(mUpdateTogglesRunnable);
+            }
+        };
 
         private View.OnClickListener mBackupClickListener = new View.OnClickListener() {
             @Override
@@ -122,16 +180,18 @@ public class OtherSettingsPage extends SetupPage {
         private View.OnClickListener mGpsClickListener = new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                Settings.Secure.setLocationProviderEnabled(mContentResolver,
-                        LocationManager.GPS_PROVIDER, !mGps.isChecked());
+                final boolean enabled = !mGps.isChecked();
+                setLocationProviderEnabled(LocationManager.GPS_PROVIDER, enabled);
+                applyLocationToggles(enabled, mNetwork.isChecked());
             }
         };
 
         private View.OnClickListener mNetworkClickListener = new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                Settings.Secure.setLocationProviderEnabled(mContentResolver,
-                        LocationManager.NETWORK_PROVIDER, !mNetwork.isChecked());
+                final boolean enabled = !mNetwork.isChecked();
+                setLocationProviderEnabled(LocationManager.NETWORK_PROVIDER, enabled);
+                applyLocationToggles(mGps.isChecked(), enabled);
             }
         };
 
@@ -140,6 +200,8 @@ public class OtherSettingsPage extends SetupPage {
             final boolean hasGms = SetupWizardUtils.hasGMS(getActivity());
             final boolean hasTelephony = SetupWizardUtils.hasTelephony(getActivity());
             mContentResolver = getActivity().getContentResolver();
+            mSettingsWatcher = SettingsWatcher.getInstance(getActivity());
+            mSettingsWriter = SettingsWriter.getInstance();
             mBackupManager = IBackupManager.Stub.asInterface(
                     ServiceManager.getService(Context.BACKUP_SERVICE));
             TextView summaryView = (TextView) mRootView.findViewById(android.R.id.summary);
@@ -152,6 +214,7 @@ public class OtherSettingsPage extends SetupPage {
                     public void onClick(View textView) {
                         WebViewDialogFragment.newInstance()
                                 .setUri(PRIVACY_POLICY_URI)
+                                .setOfflineAsset(PRIVACY_POLICY_ASSET)
                                 .show(getActivity().getFragmentManager(),
                                         WebViewDialogFragment.TAG);
                     }
@@ -161,6 +224,8 @@ public class OtherSettingsPage extends SetupPage {
                         otherSummary.length() - 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
                 summaryView.setMovementMethod(LinkMovementMethod.getInstance());
                 summaryView.setText(ss);
+                WebViewDialogFragment.prewarm(getActivity(), PRIVACY_POLICY_URI,
+                        PRIVACY_POLICY_ASSET);
             } else {
                 summaryView.setText(R.string.location_services_summary);
             }
@@ -199,64 +264,81 @@ public class OtherSettingsPage extends SetupPage {
             super.onResume();
             updateLocationToggles();
             updateBackupToggle();
-            if (mSettingsObserver == null) {
-                mSettingsObserver = new Observer() {
-                    public void update(Observable o, Object arg) {
-                        updateLocationToggles();
-                        updateBackupToggle();
-                    }
-                };
-            }
-
-            mContentQueryMap.addObserver(mSettingsObserver);
         }
 
         @Override
         public void onStart() {
             super.onStart();
             // listen for Location Manager settings changes
-            Cursor settingsCursor = getActivity().getContentResolver()
-                    .query(Settings.Secure.CONTENT_URI, null,
-                    "(" + Settings.System.NAME + "=?)",
-                    new String[]{Settings.Secure.LOCATION_PROVIDERS_ALLOWED},
-                    null);
-            mContentQueryMap =
-                    new ContentQueryMap(settingsCursor, Settings.System.NAME, true, null);
+            mSettingsWatcher.watch(LOCATION_PROVIDERS_ALLOWED_URI, mSettingsListener);
+            mSettingsWatcher.watch(BACKUP_ENABLED_URI, mSettingsListener);
         }
 
         @Override
         public void onStop() {
             super.onStop();
-            if (mSettingsObserver != null) {
-                mContentQueryMap.deleteObserver(mSettingsObserver);
-            }
-            mContentQueryMap.close();
+            mSettingsWatcher.unwatch(LOCATION_PROVIDERS_ALLOWED_URI, mSettingsListener);
+            mSettingsWatcher.unwatch(BACKUP_ENABLED_URI, mSettingsListener);
+            mHandler.removeCallbacks(mUpdateTogglesRunnable);
+        }
+
+        @Override
+        public void onDestroy() {
+            super.onDestroy();
+            WebViewDialogFragment.releasePrewarmed();
         }
 
         private boolean isBackupRestoreEnabled() {
-            try {
-                return mBackupManager.isBackupEnabled();
-            } catch (Exception e) {
-                return false;
-            }
+            return mSettingsWatcher.getInt(BACKUP_ENABLED_URI, 0) == 1;
         }
 
         private void updateBackupToggle() {
-            mBackup.setChecked(isBackupRestoreEnabled());
+            // Keep showing what the user picked until it has been written
+            if (!mSettingsWriter.hasPendingWrite(KEY_BACKUP_ENABLED)) {
+                mBackup.setChecked(isBackupRestoreEnabled());
+            }
         }
 
-        private void onToggleBackup(boolean checked) {
-            try {
-                mBackupManager.setBackupEnabled(checked);
-            } catch (RemoteException e) {}
-            updateBackupToggle();
+        private void onToggleBackup(final boolean checked) {
+            mSettingsWriter.write(KEY_BACKUP_ENABLED, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mBackupManager.setBackupEnabled(checked);
+                    } catch (RemoteException e) {}
+                }
+            });
+            mBackup.setChecked(checked);
+        }
+
+        private void setLocationProviderEnabled(final String provider, final boolean enabled) {
+            final ContentResolver contentResolver = mContentResolver;
+            mSettingsWriter.write(KEY_LOCATION_PROVIDER_PREFIX + provider, new Runnable() {
+                @Override
+                public void run() {
+                    Settings.Secure.setLocationProviderEnabled(contentResolver, provider, enabled);
+                }
+            });
+        }
+
+        private boolean isLocationProviderEnabled(String allowedProviders, String provider,
+                CheckBox checkBox) {
+            if (mSettingsWriter.hasPendingWrite(KEY_LOCATION_PROVIDER_PREFIX + provider)) {
+                return checkBox.isChecked();
+            }
+            return TextUtils.delimitedStringContains(allowedProviders, ',', provider);
         }
 
         private void updateLocationToggles() {
-            boolean gpsEnabled = Settings.Secure.isLocationProviderEnabled(
-                    mContentResolver, LocationManager.GPS_PROVIDER);
-            boolean networkEnabled = Settings.Secure.isLocationProviderEnabled(
-                    mContentResolver, LocationManager.NETWORK_PROVIDER);
+            String allowedProviders = mSettingsWatcher.getString(LOCATION_PROVIDERS_ALLOWED_URI);
+            applyLocationToggles(
+                    isLocationProviderEnabled(allowedProviders,
+                            LocationManager.GPS_PROVIDER, mGps),
+                    isLocationProviderEnabled(allowedProviders,
+                            LocationManager.NETWORK_PROVIDER, mNetwork));
+        }
+
+        private void applyLocationToggles(boolean gpsEnabled, boolean networkEnabled) {
             mGps.setChecked(gpsEnabled);
             mNetwork.setChecked(networkEnabled);
             mLocationAccess.setChecked(gpsEnabled || networkEnabled);
@@ -267,15 +349,9 @@ public class OtherSettingsPage extends SetupPage {
         }
 
         private void onToggleLocationAccess(boolean checked) {
-            Settings.Secure.setLocationProviderEnabled(mContentResolver,
-                    LocationManager.GPS_PROVIDER, checked);
-            mGps.setEnabled(checked);
-            mGpsRow.setEnabled(checked);
-            Settings.Secure.setLocationProviderEnabled(mContentResolver,
-                    LocationManager.NETWORK_PROVIDER, checked);
-            mNetwork.setEnabled(checked);
-            mNetworkRow.setEnabled(checked);
-            updateLocationToggles();
+            setLocationProviderEnabled(LocationManager.GPS_PROVIDER, checked);
+            setLocationProviderEnabled(LocationManager.NETWORK_PROVIDER, checked);
+            applyLocationToggles(checked, checked);
         }
 
     }
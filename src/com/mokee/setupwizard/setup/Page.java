@@ -21,7 +21,9 @@ import android.app.FragmentManager;
 import android.content.Intent;
 import android.os.Bundle;
 
-public interface Page {
+import com.mokee.setupwizard.core.NavigationNode;
+
+public interface Page extends NavigationNode {
 
     public static final String KEY_PAGE_ARGUMENT = "key_arg";
     public static final String KEY_PAGE_ACTION= "action";
@@ -29,7 +31,6 @@ public interface Page {
     public static final int ACTION_NEXT = 1;
     public static final int ACTION_PREVIOUS = 2;
 
-    public String getKey();
     public int getTitleResId();
     public int getPrevButtonTitleResId();
     public int getNextButtonTitleResId();
@@ -38,10 +39,11 @@ public interface Page {
     public void resetData(Bundle data);
     public boolean isRequired();
     public Page setRequired(boolean required);
-    public boolean isHidden();
     public Page setHidden(boolean hidden);
     public boolean doPreviousAction();
     public boolean doNextAction();
+    public PageAction createNextAction();
+    public PageAction createPreviousAction();
     public void doLoadAction(FragmentManager fragmentManager, int action);
     public void onFinishSetup();
     public boolean onActivityResult(int requestCode, int resultCode, Intent data);
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.setup;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Work a page has to finish before it can be left, see
+ * {@link Page#createNextAction()}. The result means the same as the one of
+ * {@link Page#doNextAction()}: true when the page handled the step itself
+ * and the wizard should stay. Either runs a callable on the thread pool or,
+ * for work that reports back through a callback, waits for
+ * {@link #complete(boolean)}. The wizard shows progress while it runs and
+ * cancels it when the user turns back.
+ */
+public class PageAction extends FutureTask<Boolean> {
+
+    private static final String TAG = PageAction.class.getSimpleName();
+
+    public interface Listener {
+        void onActionDone(PageAction action, boolean handled);
+    }
+
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    private static final Callable<Boolean> NOT_HANDLED = new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+            return Boolean.FALSE;
+        }
+    };
+
+    private final boolean mRunsInBackground;
+    private Listener mListener;
+
+    /**
+     * Runs the callable off the main thread.
+     */
+    public PageAction(Callable<Boolean> callable) {
+        super(callable);
+        mRunsInBackground = true;
+    }
+
+    /**
+     * Starts its work in {@link #onStart()} and is done once that work calls
+     * {@link #complete(boolean)}.
+     */
+    protected PageAction() {
+        super(NOT_HANDLED);
+        mRunsInBackground = false;
+    }
+
+    final void start(Listener listener) {
+        mListener = listener;
+        onStart();
+        if (mRunsInBackground) {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(this);
+        }
+    }
+
+    /**
+     * Called on the main thread when the wizard starts the action.
+     */
+    protected void onStart() {}
+
+    /**
+     * Called on the main thread after the wizard let go of the action
+     * because the page handled the step, e.g. to start another activity.
+     */
+    protected void onHandled() {}
+
+    public void complete(boolean handled) {
+        set(handled);
+    }
+
+    @Override
+    protected void done() {
+        sHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        });
+    }
+
+    private void dispatch() {
+        if (isCancelled()) {
+            return;
+        }
+        boolean handled = false;
+        try {
+            handled = get();
+        } catch (InterruptedException e) {
+            // Done already, cannot happen
+        } catch (ExecutionException e) {
+            // Never keep the user on the page over a failed check
+            Log.w(TAG, "Page action failed", e.getCause());
+        }
+        if (mListener != null) {
+            mListener.onActionDone(this, handled);
+        }
+        if (handled) {
+            onHandled();
+        }
+    }
+}
@@ -21,10 +21,16 @@ public interface SetupDataCallbacks {
     void onPreviousPage();
     void onPageLoaded(Page page);
     void onPageTreeChanged();
+    void onPageActionPending(boolean pending);
     void onFinish();
     void finishSetup();
     boolean isCurrentPage(Page page);
     Page getPage(String key);
     Page getPage(int key);
-    void addFinishRunnable(Runnable runnable);
+    /**
+     * Runs the runnable in the background once setup finishes. The name
+     * identifies the step in the latency histograms across builds, e.g.
+     * the page's key.
+     */
+    void addFinishRunnable(String name, Runnable runnable);
 }
@@ -26,6 +26,8 @@ import android.transition.Transition;
 import android.view.Gravity;
 
 import com.mokee.setupwizard.R;
+import com.mokee.setupwizard.util.EventRing;
+import com.mokee.setupwizard.util.PageTimings;
 
 
 public abstract class SetupPage implements Page {
@@ -68,11 +70,26 @@ public abstract class SetupPage implements Page {
         return false;
     }
 
+    /**
+     * Work to finish before the page can be left going forward, or null if
+     * there is none. A new action each time, the wizard starts it.
+     */
+    @Override
+    public PageAction createNextAction() {
+        return null;
+    }
+
+    @Override
+    public PageAction createPreviousAction() {
+        return null;
+    }
+
     @Override
     public void onFinishSetup() {}
 
     @Override
     public void doLoadAction(FragmentManager fragmentManager, int action) {
+        if (PageTimings.ENABLED) PageTimings.mark(PageTimings.PHASE_LOAD);
         Fragment fragment = getFragment(fragmentManager, action);
         if (action == Page.ACTION_NEXT) {
             Transition t = new Slide(Gravity.RIGHT);
@@ -112,6 +129,7 @@ public abstract class SetupPage implements Page {
 
     @Override
     public Page setHidden(boolean hidden) {
+        EventRing.record(EventRing.EVENT_HIDDEN, getKey(), hidden ? 1 : 0, mHidden ? 1 : 0);
         mHidden = hidden;
         return this;
     }
@@ -40,6 +40,9 @@ public class WelcomePage extends SetupPage {
 
     public static final String TAG = "WelcomePage";
 
+    // Set ahead of time instead of picked, value: String such as "zh_CN"
+    public static final String KEY_LOCALE = "locale";
+
     private static final String ACTION_EMERGENCY_DIAL = "com.android.phone.EmergencyDialer.DIAL";
 
     public WelcomePage(Context context, SetupDataCallbacks callbacks) {
@@ -82,6 +85,28 @@ public class WelcomePage extends SetupPage {
         return TAG;
     }
 
+    @Override
+    public void onFinishSetup() {
+        final String locale = getData().getString(KEY_LOCALE);
+        if (locale == null) {
+            return;
+        }
+        getCallbacks().addFinishRunnable(TAG, new Runnable() {
+            @Override
+            public void run() {
+                final String[] parts = locale.split("_", 3);
+                updateLocale(parts.length > 1 ? new Locale(parts[0], parts[1])
+                        : new Locale(parts[0]));
+            }
+        });
+    }
+
+    private static void updateLocale(Locale locale) {
+        com.android.internal.app.LocalePicker.updateLocale(locale);
+        SystemProperties.set("persist.sys.language", locale.getLanguage());
+        SystemProperties.set("persist.sys.country", locale.getCountry());
+    }
+
     @Override
     public int getPrevButtonTitleResId() {
         return R.string.emergency_call;
@@ -101,9 +126,7 @@ public class WelcomePage extends SetupPage {
         private final Runnable mUpdateLocale = new Runnable() {
             public void run() {
                 if (mCurrentLocale != null) {
-                    com.android.internal.app.LocalePicker.updateLocale(mCurrentLocale);
-                    SystemProperties.set("persist.sys.language", mCurrentLocale.getLanguage());
-                    SystemProperties.set("persist.sys.country", mCurrentLocale.getCountry());
+                    updateLocale(mCurrentLocale);
                 }
             }
         };
@@ -23,92 +23,38 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Handler;
-import android.provider.Settings;
 import android.util.Log;
 
 import com.mokee.setupwizard.R;
 import com.mokee.setupwizard.SetupWizardApp;
 import com.mokee.setupwizard.ui.LoadingFragment;
 import com.mokee.setupwizard.ui.SetupPageFragment;
+import com.mokee.setupwizard.util.CaptivePortalDetector;
 import com.mokee.setupwizard.util.SetupWizardUtils;
 
-import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.Random;
 
 public class WifiSetupPage extends SetupPage {
 
     public static final String TAG = "WifiSetupPage";
 
-    private static final String DEFAULT_SERVER = "download.mokeedev.com";
-    private static final int CAPTIVE_PORTAL_SOCKET_TIMEOUT_MS = 10000;
-
     private LoadingFragment mLoadingFragment;
 
-    private URL mCaptivePortalUrl;
+    // The picker returned connected, the next step checks for a portal first
+    private boolean mCheckCaptivePortal = false;
 
-    private boolean mIsCaptivePortal = false;
+    private boolean mWifiSetupShowing = false;
 
-    private final Handler mHandler = new Handler();
+    private int mCaptivePortalNetId;
 
     private String mResponseToken;
 
-    private Runnable mFinishCaptivePortalCheckRunnable = new Runnable() {
-        @Override
-        public void run() {
-            if (mIsCaptivePortal) {
-                try {
-                    int netId = ConnectivityManager.from(mContext)
-                            .getNetworkForType(ConnectivityManager.TYPE_WIFI).netId;
-                    mResponseToken = String.valueOf(new Random().nextLong());
-                    Intent intent = new Intent();
-                    intent.setData(Uri.fromParts("netid", Integer.toString(netId),
-                            mResponseToken));
-                    intent.setComponent(new ComponentName("com.android.captiveportallogin",
-                            "com.android.captiveportallogin.CaptivePortalLoginActivity"));
-                    intent.putExtra(Intent.EXTRA_TEXT, String.valueOf(netId));
-                    intent.putExtra("status_bar_color",
-                            mContext.getResources().getColor(R.color.primary_dark));
-                    intent.putExtra("action_bar_color", mContext.getResources().getColor(
-                            R.color.primary_dark));
-                    intent.putExtra("progress_bar_color", mContext.getResources().getColor(
-                            R.color.accent));
-                    ActivityOptions options =
-                            ActivityOptions.makeCustomAnimation(mContext,
-                                    android.R.anim.fade_in,
-                                    android.R.anim.fade_out);
-                    mLoadingFragment.startActivityForResult(intent,
-                            SetupWizardApp.REQUEST_CODE_SETUP_CAPTIVE_PORTAL,
-                            options.toBundle());
-                } catch (Exception e) {
-                    //Oh well
-                    Log.e(TAG, "No captive portal activity found" + e);
-                    if (getCallbacks().isCurrentPage(WifiSetupPage.this)) {
-                        getCallbacks().onNextPage();
-                    }
-                }
-            } else {
-                if (getCallbacks().isCurrentPage(WifiSetupPage.this)) {
-                    getCallbacks().onNextPage();
-                }
-            }
-        }
-    };
-
     public WifiSetupPage(Context context, SetupDataCallbacks callbacks) {
         super(context, callbacks);
-        String server = Settings.Global.getString(context.getContentResolver(), "captive_portal_server");
-        if (server == null) server = DEFAULT_SERVER;
-        try {
-            mCaptivePortalUrl = new URL("http://" + server + "/generate_204");
-        } catch (MalformedURLException e) {
-            Log.e(TAG, "Not a valid url" + e);
-        }
     }
 
     @Override
@@ -149,10 +95,12 @@ public class WifiSetupPage extends SetupPage {
     @Override
     public boolean onActivityResult(int requestCode, int resultCode, Intent data) {
         if (requestCode == SetupWizardApp.REQUEST_CODE_SETUP_WIFI) {
+            mWifiSetupShowing = false;
             if (resultCode == Activity.RESULT_CANCELED) {
                 getCallbacks().onPreviousPage();
             } else if (resultCode == Activity.RESULT_OK) {
-                checkForCaptivePortal();
+                mCheckCaptivePortal = true;
+                getCallbacks().onNextPage();
             } else {
                 getCallbacks().onNextPage();
             }
@@ -168,6 +116,8 @@ public class WifiSetupPage extends SetupPage {
                 if (resultCode == Activity.RESULT_CANCELED) {
                     launchWifiSetup();
                 } else {
+                    // Signed in, the cached verdict no longer holds
+                    CaptivePortalDetector.getInstance(mContext).invalidate(mCaptivePortalNetId);
                     getCallbacks().onNextPage();
                 }
             }
@@ -177,41 +127,66 @@ public class WifiSetupPage extends SetupPage {
         return true;
     }
 
-    private void checkForCaptivePortal() {
-        new Thread() {
-            @Override
-            public void run() {
-                mIsCaptivePortal = isCaptivePortal();
-                mHandler.post(mFinishCaptivePortalCheckRunnable);
-            }
-        }.start();
+    /**
+     * Called on connectivity changes. While the wifi picker is showing, a
+     * newly connected wifi network is probed right away so the verdict is
+     * usually ready by the time the picker returns.
+     */
+    public void onConnectivityChanged() {
+        if (!mWifiSetupShowing) {
+            return;
+        }
+        ConnectivityManager connectivityManager = ConnectivityManager.from(mContext);
+        NetworkInfo networkInfo =
+                connectivityManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
+        if (networkInfo == null || !networkInfo.isConnected()) {
+            return;
+        }
+        Network network = connectivityManager.getNetworkForType(ConnectivityManager.TYPE_WIFI);
+        if (network != null) {
+            CaptivePortalDetector.getInstance(mContext).prefetch(network);
+        }
     }
 
-    // Don't run on UI thread
-    private boolean isCaptivePortal() {
-        if (mCaptivePortalUrl == null) return false;
-        HttpURLConnection urlConnection = null;
+    @Override
+    public PageAction createNextAction() {
+        if (!mCheckCaptivePortal) {
+            return null;
+        }
+        mCheckCaptivePortal = false;
+        Network network = ConnectivityManager.from(mContext)
+                .getNetworkForType(ConnectivityManager.TYPE_WIFI);
+        return network != null ? new CaptivePortalAction(network) : null;
+    }
+
+    private void launchCaptivePortalLogin() {
         try {
-            urlConnection = (HttpURLConnection) mCaptivePortalUrl.openConnection();
-            urlConnection.setInstanceFollowRedirects(false);
-            urlConnection.setConnectTimeout(CAPTIVE_PORTAL_SOCKET_TIMEOUT_MS);
-            urlConnection.setReadTimeout(CAPTIVE_PORTAL_SOCKET_TIMEOUT_MS);
-            urlConnection.setUseCaches(false);
-            urlConnection.getInputStream();
-            // We got a valid response, but not from the real google
-            final int responseCode = urlConnection.getResponseCode();
-            if (responseCode == 408 || responseCode == 504) {
-                // If we timeout here, we'll try and go through captive portal login
-                return true;
-            }
-            return urlConnection.getResponseCode() != 204;
-        } catch (IOException e) {
-            Log.e(TAG, "Captive portal check - probably not a portal: exception "
-                    + e);
-            return false;
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            int netId = mCaptivePortalNetId;
+            mResponseToken = String.valueOf(new Random().nextLong());
+            Intent intent = new Intent();
+            intent.setData(Uri.fromParts("netid", Integer.toString(netId),
+                    mResponseToken));
+            intent.setComponent(new ComponentName("com.android.captiveportallogin",
+                    "com.android.captiveportallogin.CaptivePortalLoginActivity"));
+            intent.putExtra(Intent.EXTRA_TEXT, String.valueOf(netId));
+            intent.putExtra("status_bar_color",
+                    mContext.getResources().getColor(R.color.primary_dark));
+            intent.putExtra("action_bar_color", mContext.getResources().getColor(
+                    R.color.primary_dark));
+            intent.putExtra("progress_bar_color", mContext.getResources().getColor(
+                    R.color.accent));
+            ActivityOptions options =
+                    ActivityOptions.makeCustomAnimation(mContext,
+                            android.R.anim.fade_in,
+                            android.R.anim.fade_out);
+            mLoadingFragment.startActivityForResult(intent,
+                    SetupWizardApp.REQUEST_CODE_SETUP_CAPTIVE_PORTAL,
+                    options.toBundle());
+        } catch (Exception e) {
+            //Oh well
+            Log.e(TAG, "No captive portal activity found" + e);
+            if (getCallbacks().isCurrentPage(WifiSetupPage.this)) {
+                getCallbacks().onNextPage();
             }
         }
     }
@@ -233,5 +208,36 @@ public class WifiSetupPage extends SetupPage {
                         android.R.anim.fade_out);
         mLoadingFragment.startActivityForResult(intent,
                 SetupWizardApp.REQUEST_CODE_SETUP_WIFI, options.toBundle());
+        mWifiSetupShowing = true;
+    }
+
+    /**
+     * Holds the step off this page until the network is known not to be
+     * behind a captive portal, and shows the portal login if it is.
+     */
+    private class CaptivePortalAction extends PageAction {
+
+        private final Network mNetwork;
+
+        private CaptivePortalAction(Network network) {
+            mNetwork = network;
+        }
+
+        @Override
+        protected void onStart() {
+            CaptivePortalDetector.getInstance(mContext).check(mNetwork,
+                    new CaptivePortalDetector.Callback() {
+                        @Override
+                        public void onCaptivePortalChecked(int netId, boolean isCaptivePortal) {
+                            mCaptivePortalNetId = netId;
+                            complete(isCaptivePortal);
+                        }
+                    });
+        }
+
+        @Override
+        protected void onHandled() {
+            launchCaptivePortalLogin();
+        }
     }
 }
@@ -28,6 +28,9 @@ import android.widget.TextView;
 import com.mokee.setupwizard.R;
 import com.mokee.setupwizard.setup.Page;
 import com.mokee.setupwizard.setup.SetupDataCallbacks;
+import com.mokee.setupwizard.util.EventRing;
+import com.mokee.setupwizard.util.PageTimings;
+import com.mokee.setupwizard.util.StartupTrace;
 
 public abstract class SetupPageFragment extends Fragment {
 
@@ -47,10 +50,12 @@ public abstract class SetupPageFragment extends Fragment {
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
             Bundle savedInstanceState) {
+        if (PageTimings.ENABLED) PageTimings.mark(PageTimings.PHASE_CREATE_VIEW);
         mRootView = inflater.inflate(getLayoutResource(), container, false);
         mTitleView = (TextView) mRootView.findViewById(android.R.id.title);
         mHeaderView = (ViewGroup )  mRootView.findViewById(R.id.header);
         initializePage();
+        if (PageTimings.ENABLED) PageTimings.mark(PageTimings.PHASE_INITIALIZED);
         return mRootView;
     }
 
@@ -77,16 +82,19 @@ public abstract class SetupPageFragment extends Fragment {
     @Override
     public void onResume() {
         super.onResume();
+        if (PageTimings.ENABLED) PageTimings.mark(PageTimings.PHASE_RESUMED);
         mPage = mCallbacks.getPage(mKey);
         if (mTitleView != null) {
             mTitleView.setText(mPage.getTitleResId());
         }
         mCallbacks.onPageLoaded(mPage);
+        StartupTrace.pageResumed(mRootView);
         getActivity().startPostponedEnterTransition();
     }
 
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        EventRing.record(EventRing.EVENT_ACTIVITY_RESULT, mKey, requestCode, resultCode);
         // On low mem devices, this fragment might get destroyed by
         // fragment manager while we are in another activity.
         if (mPage == null) {
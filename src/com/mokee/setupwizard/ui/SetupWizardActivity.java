@@ -29,8 +29,10 @@ import android.graphics.Point;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
+import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewAnimationUtils;
@@ -45,9 +47,21 @@ import com.mokee.setupwizard.SetupWizardApp;
 import com.mokee.setupwizard.setup.MKSetupWizardData;
 import com.mokee.setupwizard.setup.Page;
 import com.mokee.setupwizard.setup.SetupDataCallbacks;
+import com.mokee.setupwizard.util.AnswerFile;
+import com.mokee.setupwizard.util.CaptivePortalDetector;
+import com.mokee.setupwizard.util.DataSubSwitchController;
 import com.mokee.setupwizard.util.EnableAccessibilityController;
+import com.mokee.setupwizard.util.EventRing;
+import com.mokee.setupwizard.util.LatencyHistograms;
+import com.mokee.setupwizard.util.PageTimings;
+import com.mokee.setupwizard.util.ProgressJournal;
+import com.mokee.setupwizard.util.SettingsWriter;
 import com.mokee.setupwizard.util.SetupWizardUtils;
+import com.mokee.setupwizard.util.StartupTrace;
+import com.mokee.setupwizard.util.TelephonyStateHub;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 
 public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
@@ -61,11 +75,17 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
             | View.SYSTEM_UI_FLAG_HIDE_NAVIGATION
             | View.SYSTEM_UI_FLAG_IMMERSIVE_STICKY;
 
+    private static final int SETTINGS_FLUSH_TIMEOUT = 5 * 1000;
+
+    // Finish step names are histogram keys, keep them stable
+    private static final String FINISH_STEP_PROVISION = "provision";
+
     private View mRootView;
     private View mButtonBar;
     private Button mNextButton;
     private Button mPrevButton;
     private ImageView mReveal;
+    private ProgressBar mActionProgressBar;
     private ProgressBar mFinishingProgressBar;
 
     private EnableAccessibilityController mEnableAccessibilityController;
@@ -77,8 +97,14 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
     private volatile boolean mIsFinishing = false;
 
     private final ArrayList<Runnable> mFinishRunnables = new ArrayList<Runnable>();
+    private final ArrayList<String> mFinishStepNames = new ArrayList<String>();
+
+    // Set when no pages are shown and every answer comes from a file
+    private AnswerFile mAnswers;
+    private long mExpressStart;
 
     public void onCreate(Bundle savedInstanceState) {
+        StartupTrace.begin("SetupWizardActivity.onCreate");
         super.onCreate(savedInstanceState);
         final boolean isOwner = SetupWizardUtils.isOwner();
         if (!isOwner) {
@@ -96,20 +122,41 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
                         }
                     }
                 });
+        StartupTrace.watchFirstFrame(decorView);
+        StartupTrace.begin("setContentView");
         setContentView(R.layout.setup_main);
+        StartupTrace.end();
         mRootView = findViewById(R.id.root);
         mRootView.setSystemUiVisibility(UI_FLAGS);
         mReveal = (ImageView)mRootView.findViewById(R.id.reveal);
         mButtonBar = findViewById(R.id.button_bar);
+        mActionProgressBar = (ProgressBar)findViewById(R.id.action_progress);
         mFinishingProgressBar = (ProgressBar)findViewById(R.id.finishing_bar);
         ((SetupWizardApp)getApplicationContext()).disableStatusBar();
         mSetupData = (MKSetupWizardData)getLastNonConfigurationInstance();
         if (mSetupData == null) {
+            StartupTrace.begin("MKSetupWizardData");
             mSetupData = new MKSetupWizardData(getApplicationContext());
+            if (savedInstanceState == null) {
+                mAnswers = AnswerFile.load();
+                if (mAnswers != null && !mSetupData.canSkipAccount()) {
+                    // Would get around factory reset protection
+                    Log.w(TAG, "Account check required, ignoring " + mAnswers.getSource());
+                    mAnswers = null;
+                }
+            }
+            // A fresh process, pick up where a killed one left off
+            ProgressJournal journal = new ProgressJournal(getApplicationContext());
+            ProgressJournal.Snapshot snapshot = mAnswers == null ? journal.restore() : null;
+            if (snapshot != null) {
+                mSetupData.restore(snapshot);
+            }
+            mSetupData.setJournal(journal);
+            StartupTrace.end();
         }
         mNextButton = (Button) findViewById(R.id.next_button);
         mPrevButton = (Button) findViewById(R.id.prev_button);
-        if (mSetupData.isFinished()) {
+        if (mSetupData.isFinished() || mAnswers != null) {
             mNextButton.setVisibility(View.INVISIBLE);
             mPrevButton.setVisibility(View.INVISIBLE);
         }
@@ -117,26 +164,30 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
         mNextButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                enableButtonBar(false);
+                if (PageTimings.ENABLED) PageTimings.mark(PageTimings.PHASE_TAP);
                 mSetupData.onNextPage();
             }
         });
         mPrevButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                enableButtonBar(false);
+                if (PageTimings.ENABLED) PageTimings.mark(PageTimings.PHASE_TAP);
                 mSetupData.onPreviousPage();
             }
         });
-        if (savedInstanceState == null) {
+        if (savedInstanceState == null && mAnswers == null) {
+            StartupTrace.begin("doLoadAction");
             Page page = mSetupData.getCurrentPage();
             page.doLoadAction(getFragmentManager(), Page.ACTION_NEXT);
+            StartupTrace.end();
         }
         if (savedInstanceState != null && savedInstanceState.containsKey("data")) {
             mSetupData.load(savedInstanceState.getBundle("data"));
         }
+        StartupTrace.begin("EnableAccessibilityController");
         mEnableAccessibilityController =
                 EnableAccessibilityController.getInstance(getApplicationContext());
+        StartupTrace.end();
         mRootView.setOnTouchListener(new View.OnTouchListener() {
             @Override
             public boolean onTouch(View v, MotionEvent event) {
@@ -145,7 +196,25 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
                 return consumeIntercept && consumeTouch;
             }
         });
+        StartupTrace.begin("registerReceiver");
         registerReceiver(mSetupData, mSetupData.getIntentFilter());
+        StartupTrace.end();
+        if (mAnswers != null && !isFinishing()) {
+            startExpressSetup();
+        }
+        StartupTrace.end();
+    }
+
+    /**
+     * Sets up the device straight from the answer file: every answer is
+     * handed to its page at once and the pages are finished without any
+     * of them being shown.
+     */
+    private void startExpressSetup() {
+        Log.i(TAG, "Setting up from answers in " + mAnswers.getSource());
+        mExpressStart = SystemClock.elapsedRealtime();
+        mSetupData.applyAnswers(mAnswers);
+        onFinish();
     }
 
     @Override
@@ -166,7 +235,7 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
         }  else {
             mSetupData.onResume();
             onPageTreeChanged();
-            enableButtonBar(true);
+            onPageActionPending(mSetupData.isPageActionPending());
         }
     }
 
@@ -176,6 +245,14 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
         if (mSetupData != null) {
             mSetupData.onPause();
         }
+        // Keep what this run measured should the process be killed
+        final LatencyHistograms histograms = LatencyHistograms.getInstance(this);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                histograms.save();
+            }
+        });
     }
 
     @Override
@@ -199,9 +276,23 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
         outState.putBundle("data", mSetupData.save());
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        StartupTrace.dump(prefix, writer);
+        PageTimings.dump(prefix, writer);
+        LatencyHistograms.getInstance(this).dump(prefix, writer);
+        EventRing.dump(prefix, writer);
+        CaptivePortalDetector.getInstance(this).dump(prefix, writer);
+        if (SetupWizardUtils.isMultiSimDevice(this)) {
+            DataSubSwitchController.getInstance(this).dump(prefix, writer);
+        }
+    }
+
     @Override
     public void onBackPressed() {
         if (!mSetupData.isFirstPage()) {
+            if (PageTimings.ENABLED) PageTimings.mark(PageTimings.PHASE_TAP);
             mSetupData.onPreviousPage();
         }
     }
@@ -224,8 +315,10 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
 
     @Override
     public void onPageLoaded(Page page) {
+        if (PageTimings.ENABLED) PageTimings.pageLoaded(page.getKey());
         updateButtonBar();
-        enableButtonBar(true);
+        // Taps made while this page was loading run now
+        mSetupData.onPageShown(page);
     }
 
     @Override
@@ -233,9 +326,10 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
         updateButtonBar();
     }
 
-    private void enableButtonBar(boolean enabled) {
-        mNextButton.setEnabled(enabled);
-        mPrevButton.setEnabled(enabled);
+    @Override
+    public void onPageActionPending(boolean pending) {
+        // The buttons stay enabled, back cancels and next just queues up
+        mActionProgressBar.setVisibility(pending ? View.VISIBLE : View.GONE);
     }
 
     private void updateButtonBar() {
@@ -290,12 +384,14 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
     }
 
     @Override
-    public void addFinishRunnable(Runnable runnable) {
+    public void addFinishRunnable(String name, Runnable runnable) {
         mFinishRunnables.add(runnable);
+        mFinishStepNames.add(name);
     }
 
     @Override
     public void onFinish() {
+        EventRing.record(EventRing.EVENT_FINISH, "start");
         setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LOCKED);
         Animation fadeOut = AnimationUtils.loadAnimation(this, android.R.anim.fade_out);
         mNextButton.startAnimation(fadeOut);
@@ -342,7 +438,18 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
                     new Intent(SetupWizardApp.ACTION_FINISHED),
                     UserHandle.getCallingUserHandle());
             mIsFinishing = true;
-            setupRevealImage();
+            if (mAnswers != null) {
+                // Nobody to show the reveal to. Still posted, pages after the
+                // one calling this have yet to add their finish runnables
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        finalizeSetup();
+                    }
+                });
+            } else {
+                setupRevealImage();
+            }
         }
     }
 
@@ -413,9 +520,15 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
     }
 
     private void finalizeSetup() {
-        mFinishRunnables.add(new Runnable() {
+        if (SetupWizardUtils.hasTelephony(this)) {
+            TelephonyStateHub.getInstance(getApplicationContext()).stop();
+        }
+        addFinishRunnable(FINISH_STEP_PROVISION, new Runnable() {
             @Override
             public void run() {
+                // Toggles from the pages must land before setup is marked done
+                SettingsWriter.getInstance().flush(SETTINGS_FLUSH_TIMEOUT);
+                mSetupData.deleteJournal();
                 Settings.Global.putInt(getContentResolver(), Settings.Global.DEVICE_PROVISIONED, 1);
                 Settings.Secure.putInt(getContentResolver(),
                         Settings.Secure.USER_SETUP_COMPLETE, 1);
@@ -431,31 +544,51 @@ public class SetupWizardActivity extends Activity implements SetupDataCallbacks,
                 wallpaperManager.forgetLoadedWallpaper();
             }
         });
-        new FinishTask(this, mFinishRunnables).execute();
+        new FinishTask(this, mFinishRunnables, mFinishStepNames).execute();
     }
 
     private static class FinishTask extends AsyncTask<Void, Void, Boolean> {
 
         private final SetupWizardActivity mActivity;
         private final ArrayList<Runnable> mFinishRunnables;
+        private final ArrayList<String> mFinishStepNames;
 
         public FinishTask(SetupWizardActivity activity,
-                ArrayList<Runnable> finishRunnables) {
+                ArrayList<Runnable> finishRunnables, ArrayList<String> finishStepNames) {
             mActivity = activity;
             mFinishRunnables = finishRunnables;
+            mFinishStepNames = finishStepNames;
         }
 
         @Override
         protected Boolean doInBackground(Void... params) {
-            for (Runnable runnable : mFinishRunnables) {
-                runnable.run();
+            final LatencyHistograms histograms = LatencyHistograms.getInstance(mActivity);
+            final long start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < mFinishRunnables.size(); i++) {
+                // The last one logged is the one to blame if this hangs
+                final String name = mFinishStepNames.get(i);
+                EventRing.record(EventRing.EVENT_FINISH, name, i, mFinishRunnables.size());
+                final long stepStart = SystemClock.elapsedRealtime();
+                mFinishRunnables.get(i).run();
+                histograms.record(LatencyHistograms.METRIC_FINISH_STEP + name,
+                        SystemClock.elapsedRealtime() - stepStart);
             }
+            histograms.record(LatencyHistograms.METRIC_FINISH,
+                    SystemClock.elapsedRealtime() - start);
+            histograms.finishRun();
+            histograms.save();
+            EventRing.record(EventRing.EVENT_FINISH, "done");
             SetupWizardUtils.disableSetupWizard(mActivity);
             return Boolean.TRUE;
         }
 
         @Override
         protected void onPostExecute(Boolean aBoolean) {
+            final AnswerFile answers = mActivity.mAnswers;
+            if (answers != null) {
+                Log.i(TAG, "Provisioned from " + answers.getSource() + " in "
+                        + (SystemClock.elapsedRealtime() - mActivity.mExpressStart) + "ms");
+            }
             Intent intent = new Intent(Intent.ACTION_MAIN);
             intent.addCategory(Intent.CATEGORY_HOME);
             mActivity.startActivity(intent);
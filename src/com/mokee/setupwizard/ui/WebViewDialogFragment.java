@@ -19,21 +19,42 @@ package com.mokee.setupwizard.ui;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.DialogFragment;
+import android.content.Context;
 import android.content.DialogInterface;
+import android.content.MutableContextWrapper;
 import android.os.Bundle;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.text.TextUtils;
+import android.util.Log;
 import android.view.View;
+import android.view.ViewGroup;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 
 import com.mokee.setupwizard.R;
+import com.mokee.setupwizard.util.SetupWizardUtils;
+
+import java.io.IOException;
 
 public class WebViewDialogFragment extends DialogFragment {
 
     public static String TAG = WebViewDialogFragment.class.getSimpleName();
 
+    private static final String ASSET_URL_PREFIX = "file:///android_asset/";
+
+    // Built at idle time so the dialog does not pay for loading the
+    // WebView runtime and the document when it is opened
+    private static WebView sPrewarmedWebView;
+    private static String sPrewarmedUri;
+    private static MessageQueue.IdleHandler sPrewarmIdleHandler;
+
     private View mRootView;
     private WebView mWebView;
     private String mUri;
+    private String mOfflineAsset;
     private Dialog mDialog;
 
     public static WebViewDialogFragment newInstance() {
@@ -49,21 +70,113 @@ public class WebViewDialogFragment extends DialogFragment {
         return this;
     }
 
-    @Override
-    public void onCreate(Bundle savedInstanceState) {
-        super.onCreate(savedInstanceState);
-        setRetainInstance(true);
-        mRootView = getActivity().getLayoutInflater().inflate(R.layout.terms_webview, null, false);
-        mWebView = (WebView)mRootView.findViewById(R.id.webview);
-        mWebView.setWebViewClient(new WebViewClient() {
+    /**
+     * Serves the given asset in place of the uri when there is no network,
+     * or when the network copy fails to load.
+     */
+    public WebViewDialogFragment setOfflineAsset(String asset) {
+        mOfflineAsset = asset;
+        return this;
+    }
+
+    /**
+     * Creates a WebView and starts loading the uri once the main thread is
+     * idle, for a dialog that is likely to be opened soon.
+     */
+    public static void prewarm(Context context, final String uri, final String offlineAsset) {
+        if (sPrewarmedWebView != null || sPrewarmIdleHandler != null) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        sPrewarmIdleHandler = new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                sPrewarmIdleHandler = null;
+                sPrewarmedWebView = createWebView(new MutableContextWrapper(appContext),
+                        offlineAsset);
+                sPrewarmedWebView.loadUrl(uri);
+                sPrewarmedUri = uri;
+                return false;
+            }
+        };
+        Looper.myQueue().addIdleHandler(sPrewarmIdleHandler);
+    }
+
+    /**
+     * Drops a prewarmed WebView that was never shown.
+     */
+    public static void releasePrewarmed() {
+        if (sPrewarmIdleHandler != null) {
+            Looper.myQueue().removeIdleHandler(sPrewarmIdleHandler);
+            sPrewarmIdleHandler = null;
+        }
+        if (sPrewarmedWebView != null) {
+            sPrewarmedWebView.destroy();
+            sPrewarmedWebView = null;
+            sPrewarmedUri = null;
+        }
+    }
+
+    private static WebView createWebView(Context context, final String offlineAsset) {
+        final Context appContext = context.getApplicationContext();
+        WebView webView = new WebView(context);
+        webView.setWebViewClient(new WebViewClient() {
             @Override
             public boolean shouldOverrideUrlLoading(WebView view, String url) {
                 return false;
             }
+
+            @Override
+            public WebResourceResponse shouldInterceptRequest(WebView view,
+                    WebResourceRequest request) {
+                // Called off the main thread
+                if (offlineAsset != null && request.isForMainFrame()
+                        && !SetupWizardUtils.isNetworkConnected(appContext)) {
+                    return openAsset(appContext, offlineAsset);
+                }
+                return null;
+            }
+
+            @Override
+            public void onReceivedError(WebView view, int errorCode, String description,
+                    String failingUrl) {
+                if (offlineAsset != null && !failingUrl.startsWith(ASSET_URL_PREFIX)) {
+                    view.loadUrl(ASSET_URL_PREFIX + offlineAsset);
+                }
+            }
         });
-        mWebView.getSettings().setJavaScriptEnabled(true);
-        mWebView.getSettings().setUseWideViewPort(true);
-        mWebView.loadUrl(mUri);
+        webView.getSettings().setJavaScriptEnabled(true);
+        webView.getSettings().setUseWideViewPort(true);
+        return webView;
+    }
+
+    private static WebResourceResponse openAsset(Context context, String asset) {
+        try {
+            return new WebResourceResponse("text/html", "utf-8",
+                    context.getAssets().open(asset));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open " + asset, e);
+            return null;
+        }
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setRetainInstance(true);
+        mRootView = getActivity().getLayoutInflater().inflate(R.layout.terms_webview, null, false);
+        if (sPrewarmedWebView != null && TextUtils.equals(sPrewarmedUri, mUri)) {
+            mWebView = sPrewarmedWebView;
+            ((MutableContextWrapper) mWebView.getContext()).setBaseContext(getActivity());
+            sPrewarmedWebView = null;
+            sPrewarmedUri = null;
+        } else {
+            mWebView = createWebView(getActivity(), mOfflineAsset);
+            mWebView.loadUrl(mUri);
+        }
+        ViewGroup container = (ViewGroup) mRootView.findViewById(R.id.webview_container);
+        container.addView(mWebView, new ViewGroup.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
     }
 
     @Override
@@ -82,5 +195,10 @@ public class WebViewDialogFragment extends DialogFragment {
         }
         return mDialog;
     }
-}
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mWebView.destroy();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.util;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * Answers for every page, read ahead of time so a device can be set up
+ * without anyone tapping through the wizard, e.g. on a provisioning line.
+ * A JSON object with any of these keys:
+ *
+ * <pre>
+ * {
+ *   "locale": "zh_CN",
+ *   "timezone": "Asia/Shanghai",
+ *   "data_sim": 0,
+ *   "mobile_data": true,
+ *   "nav_keys": false,
+ *   "default_theme": true,
+ *   "location": true,
+ *   "backup": false,
+ *   "input_method": "com.example.ime"
+ * }
+ * </pre>
+ *
+ * Only read from {@link #PATH}, which only the shell and system can write.
+ * Intent extras are not taken, anyone can start the wizard.
+ */
+public class AnswerFile {
+
+    private static final String TAG = AnswerFile.class.getSimpleName();
+
+    public static final String PATH = "/data/local/tmp/setupwizard_answers.json";
+
+    public static final String KEY_LOCALE = "locale";
+    public static final String KEY_TIMEZONE = "timezone";
+    public static final String KEY_DATA_SIM = "data_sim";
+    public static final String KEY_MOBILE_DATA = "mobile_data";
+    public static final String KEY_NAV_KEYS = "nav_keys";
+    public static final String KEY_DEFAULT_THEME = "default_theme";
+    public static final String KEY_LOCATION = "location";
+    public static final String KEY_BACKUP = "backup";
+    public static final String KEY_INPUT_METHOD = "input_method";
+
+    // Larger than any sensible answer file, guards against reading garbage
+    private static final int MAX_SIZE = 64 * 1024;
+
+    private final JSONObject mAnswers;
+    private final String mSource;
+    private final HashSet<String> mUsed = new HashSet<String>();
+
+    private AnswerFile(JSONObject answers, String source) {
+        mAnswers = answers;
+        mSource = source;
+    }
+
+    /**
+     * Returns the answers for this run, or null to set up interactively.
+     * Answers that cannot be read or parsed are logged and ignored.
+     */
+    public static AnswerFile load() {
+        try {
+            File file = new File(PATH);
+            return file.exists() ? fromFile(file) : null;
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Unable to read answers, setting up interactively", e);
+            return null;
+        }
+    }
+
+    private static AnswerFile fromFile(File file) throws IOException, JSONException {
+        final long length = file.length();
+        if (length > MAX_SIZE) {
+            throw new IOException(file + " is too large: " + length);
+        }
+        byte[] buffer = new byte[(int) length];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < buffer.length) {
+                int count = in.read(buffer, read, buffer.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            return new AnswerFile(new JSONObject(new String(buffer, 0, read, "UTF-8")),
+                    file.getPath());
+        } finally {
+            in.close();
+        }
+    }
+
+    public String getSource() {
+        return mSource;
+    }
+
+    public boolean has(String key) {
+        return mAnswers.has(key);
+    }
+
+    /**
+     * Copies an answer into page data under the page's own key, keeping
+     * its type. Returns false if there is no such answer or its type is
+     * not one pages store.
+     */
+    public boolean copyTo(String key, Bundle data, String dataKey) {
+        final Object value = mAnswers.opt(key);
+        if (value instanceof Boolean) {
+            data.putBoolean(dataKey, (Boolean) value);
+        } else if (value instanceof Integer) {
+            data.putInt(dataKey, (Integer) value);
+        } else if (value instanceof String) {
+            data.putString(dataKey, (String) value);
+        } else {
+            if (value != null) {
+                Log.w(TAG, "Ignoring " + key + ", unexpected value " + value);
+            }
+            return false;
+        }
+        mUsed.add(key);
+        return true;
+    }
+
+    /**
+     * Logs answers no page took, most likely typos.
+     */
+    public void warnUnused() {
+        Iterator<String> keys = mAnswers.keys();
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            if (!mUsed.contains(key)) {
+                Log.w(TAG, "Answer " + key + " was not used");
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.util;
+
+import android.content.Context;
+import android.net.Network;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import com.mokee.setupwizard.SetupWizardApp;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Decides whether a network is behind a captive portal by racing several
+ * probes against each other: http and https on the configured server plus
+ * any fallback servers, see {@link CaptivePortalProber}. Verdicts are cached
+ * per netId.
+ */
+public class CaptivePortalDetector {
+
+    private static final String TAG = CaptivePortalDetector.class.getSimpleName();
+
+    private static final String DEFAULT_SERVER = "download.mokeedev.com";
+    private static final String KEY_CAPTIVE_PORTAL_SERVER = "captive_portal_server";
+    // Comma separated list of extra hosts serving generate_204
+    private static final String KEY_CAPTIVE_PORTAL_FALLBACK_SERVERS =
+            "captive_portal_fallback_servers";
+
+    private static final int CAPTIVE_PORTAL_SOCKET_TIMEOUT_MS = 10000;
+    // No probe answered conclusively in time, assume there is no portal
+    private static final int CAPTIVE_PORTAL_DEADLINE_MS = 10000;
+
+    public interface Callback {
+        void onCaptivePortalChecked(int netId, boolean isCaptivePortal);
+    }
+
+    private static CaptivePortalDetector sInstance;
+
+    // Shared by every check, probes are short lived and mostly blocked on I/O
+    private static final ExecutorService sExecutor = Executors.newCachedThreadPool();
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Only touched on the main thread
+    private final SparseBooleanArray mResults = new SparseBooleanArray();
+    private final SparseArray<ArrayList<Callback>> mPendingCallbacks =
+            new SparseArray<ArrayList<Callback>>();
+    // Networks checked by prefetch that nobody asked about yet
+    private final SparseBooleanArray mPrefetched = new SparseBooleanArray();
+
+    private int mPrefetchCount;
+    // The verdict was waiting when it was asked for
+    private int mPrefetchReadyCount;
+    // The prefetch was still running but had a head start
+    private int mPrefetchLateCount;
+
+    private CaptivePortalDetector(Context context) {
+        mContext = context;
+    }
+
+    public static CaptivePortalDetector getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CaptivePortalDetector(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Checks the network and reports back on the main thread. A cached
+     * verdict is reported without probing again, and a check already in
+     * flight for the same network is joined instead of restarted.
+     */
+    public void check(final Network network, final Callback callback) {
+        final int netId = network.netId;
+        if (mResults.indexOfKey(netId) >= 0) {
+            if (mPrefetched.get(netId)) {
+                mPrefetched.delete(netId);
+                mPrefetchReadyCount++;
+            }
+            final boolean isCaptivePortal = mResults.get(netId);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onCaptivePortalChecked(netId, isCaptivePortal);
+                }
+            });
+            return;
+        }
+        ArrayList<Callback> callbacks = mPendingCallbacks.get(netId);
+        if (mPrefetched.get(netId)) {
+            mPrefetched.delete(netId);
+            mPrefetchLateCount++;
+        }
+        if (callbacks != null) {
+            callbacks.add(callback);
+            return;
+        }
+        startCheck(network).add(callback);
+    }
+
+    /**
+     * Starts checking a network ahead of time, so that a later
+     * {@link #check} can be answered from the cache.
+     */
+    public void prefetch(Network network) {
+        final int netId = network.netId;
+        if (mResults.indexOfKey(netId) >= 0 || mPendingCallbacks.get(netId) != null) {
+            return;
+        }
+        if (SetupWizardApp.DEBUG) Log.d(TAG, "Prefetching captive portal check for " + netId);
+        mPrefetchCount++;
+        mPrefetched.put(netId, true);
+        startCheck(network);
+    }
+
+    private ArrayList<Callback> startCheck(final Network network) {
+        final int netId = network.netId;
+        final ArrayList<Callback> callbacks = new ArrayList<Callback>();
+        mPendingCallbacks.put(netId, callbacks);
+        final ArrayList<URL> urls = getProbeUrls();
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long start = SystemClock.elapsedRealtime();
+                final boolean isCaptivePortal = race(network, urls);
+                LatencyHistograms.getInstance(mContext).record(
+                        LatencyHistograms.METRIC_CAPTIVE_PORTAL,
+                        SystemClock.elapsedRealtime() - start);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onResult(netId, isCaptivePortal);
+                    }
+                });
+            }
+        });
+        return callbacks;
+    }
+
+    /**
+     * Forgets the verdict for a network, for example once the user signed
+     * in to its portal.
+     */
+    public void invalidate(int netId) {
+        mResults.delete(netId);
+        mPrefetched.delete(netId);
+    }
+
+    public void dump(String prefix, PrintWriter pw) {
+        pw.print(prefix); pw.println("Captive portal prefetch:");
+        pw.print(prefix); pw.print("  started="); pw.print(mPrefetchCount);
+        pw.print(" ready="); pw.print(mPrefetchReadyCount);
+        pw.print(" late="); pw.println(mPrefetchLateCount);
+    }
+
+    private void onResult(int netId, boolean isCaptivePortal) {
+        mResults.put(netId, isCaptivePortal);
+        ArrayList<Callback> callbacks = mPendingCallbacks.get(netId);
+        mPendingCallbacks.remove(netId);
+        if (callbacks != null) {
+            for (int i = 0; i < callbacks.size(); i++) {
+                callbacks.get(i).onCaptivePortalChecked(netId, isCaptivePortal);
+            }
+        }
+    }
+
+    private ArrayList<URL> getProbeUrls() {
+        String server = Settings.Global.getString(mContext.getContentResolver(),
+                KEY_CAPTIVE_PORTAL_SERVER);
+        if (server == null) server = DEFAULT_SERVER;
+        ArrayList<URL> urls = new ArrayList<URL>();
+        addProbeUrl(urls, "http://" + server + "/generate_204");
+        addProbeUrl(urls, "https://" + server + "/generate_204");
+        String fallbacks = Settings.Global.getString(mContext.getContentResolver(),
+                KEY_CAPTIVE_PORTAL_FALLBACK_SERVERS);
+        if (!TextUtils.isEmpty(fallbacks)) {
+            for (String fallback : fallbacks.split(",")) {
+                fallback = fallback.trim();
+                if (!fallback.isEmpty() && !fallback.equals(server)) {
+                    addProbeUrl(urls, "http://" + fallback + "/generate_204");
+                }
+            }
+        }
+        return urls;
+    }
+
+    private static void addProbeUrl(ArrayList<URL> urls, String url) {
+        try {
+            urls.add(new URL(url));
+        } catch (MalformedURLException e) {
+            Log.e(TAG, "Not a valid url" + e);
+        }
+    }
+
+    // Don't run on UI thread
+    private static boolean race(final Network network, ArrayList<URL> urls) {
+        final long start = SystemClock.elapsedRealtime();
+        final CaptivePortalProber prober = new CaptivePortalProber(sExecutor,
+                new ProbeTransport() {
+                    @Override
+                    public HttpURLConnection openConnection(URL url) throws IOException {
+                        return (HttpURLConnection) network.openConnection(url);
+                    }
+                }, CAPTIVE_PORTAL_SOCKET_TIMEOUT_MS, CAPTIVE_PORTAL_DEADLINE_MS);
+        final int result = prober.race(urls);
+        if (result == CaptivePortalProber.RESULT_INCONCLUSIVE) {
+            Log.w(TAG, "Captive portal check inconclusive - probably not a portal");
+        }
+        if (SetupWizardApp.DEBUG) {
+            Log.d(TAG, "Captive portal check: " + result + " after "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
+        }
+        return result == CaptivePortalProber.RESULT_PORTAL;
+    }
+}
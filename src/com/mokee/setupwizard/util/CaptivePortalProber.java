@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.util;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Races generate_204 probes against each other and returns the first
+ * conclusive answer. Plain java so the decision path can be exercised on
+ * the host, see benchmark/.
+ */
+public class CaptivePortalProber {
+
+    public static final int RESULT_INCONCLUSIVE = 0;
+    public static final int RESULT_NO_PORTAL = 1;
+    public static final int RESULT_PORTAL = 2;
+
+    private final ExecutorService mExecutor;
+    private final ProbeTransport mTransport;
+    private final int mSocketTimeoutMs;
+    private final int mDeadlineMs;
+
+    public CaptivePortalProber(ExecutorService executor, ProbeTransport transport,
+            int socketTimeoutMs, int deadlineMs) {
+        mExecutor = executor;
+        mTransport = transport;
+        mSocketTimeoutMs = socketTimeoutMs;
+        mDeadlineMs = deadlineMs;
+    }
+
+    /**
+     * Blocks until a probe answers conclusively, every probe failed or the
+     * deadline passed. The executor needs a free thread per url.
+     */
+    public int race(List<URL> urls) {
+        final long start = System.nanoTime();
+        final CompletionService<Integer> completionService =
+                new ExecutorCompletionService<Integer>(mExecutor);
+        final ArrayList<Probe> probes = new ArrayList<Probe>(urls.size());
+        final ArrayList<Future<Integer>> futures = new ArrayList<Future<Integer>>(urls.size());
+        for (URL url : urls) {
+            Probe probe = new Probe(url);
+            probes.add(probe);
+            futures.add(completionService.submit(probe));
+        }
+        int result = RESULT_INCONCLUSIVE;
+        try {
+            for (int i = 0; i < futures.size() && result == RESULT_INCONCLUSIVE; i++) {
+                final long remaining = mDeadlineMs
+                        - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                Future<Integer> done = remaining > 0
+                        ? completionService.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                if (done == null) {
+                    break;
+                }
+                try {
+                    result = done.get();
+                } catch (ExecutionException e) {
+                    // Treated like any other inconclusive probe
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (int i = 0; i < probes.size(); i++) {
+                futures.get(i).cancel(true);
+                probes.get(i).cancel();
+            }
+        }
+        return result;
+    }
+
+    private class Probe implements Callable<Integer> {
+
+        private final URL mUrl;
+        private volatile HttpURLConnection mConnection;
+        private volatile boolean mCancelled;
+
+        private Probe(URL url) {
+            mUrl = url;
+        }
+
+        @Override
+        public Integer call() {
+            final boolean https = "https".equals(mUrl.getProtocol());
+            HttpURLConnection urlConnection = null;
+            try {
+                urlConnection = mTransport.openConnection(mUrl);
+                mConnection = urlConnection;
+                if (mCancelled) {
+                    return RESULT_INCONCLUSIVE;
+                }
+                urlConnection.setInstanceFollowRedirects(false);
+                urlConnection.setConnectTimeout(mSocketTimeoutMs);
+                urlConnection.setReadTimeout(mSocketTimeoutMs);
+                urlConnection.setUseCaches(false);
+                // Only the status line matters, error statuses must not throw
+                final int responseCode = urlConnection.getResponseCode();
+                if (responseCode == 204) {
+                    return RESULT_NO_PORTAL;
+                }
+                // A portal can not answer for the real host over https, so
+                // anything but a 204 there says nothing about the network.
+                if (https) {
+                    return RESULT_INCONCLUSIVE;
+                }
+                // A portal answers with its login page or a redirect to it.
+                // Errors more likely come from a broken fallback server or a
+                // middlebox, which must not win the race over a real 204.
+                if (responseCode >= 200 && responseCode < 400) {
+                    return RESULT_PORTAL;
+                }
+                return RESULT_INCONCLUSIVE;
+            } catch (IOException e) {
+                return RESULT_INCONCLUSIVE;
+            } finally {
+                if (urlConnection != null) {
+                    urlConnection.disconnect();
+                }
+            }
+        }
+
+        private void cancel() {
+            mCancelled = true;
+            HttpURLConnection connection = mConnection;
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.util;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.util.Log;
+
+import com.mokee.setupwizard.SetupWizardApp;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Drives a switch of the default data subscription through
+ * pending, confirmed and failed states. A switch that is not confirmed in
+ * time is retried once and then rolled back to the previous subscription,
+ * so a stuck modem can not hold the wizard on a spinner.
+ *
+ * This is app scoped because a user can click back mid operation and the
+ * confirmation can take a long time to arrive.
+ */
+public class DataSubSwitchController {
+
+    private static final String TAG = DataSubSwitchController.class.getSimpleName();
+
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_PENDING = 1;
+    public static final int STATE_CONFIRMED = 2;
+    public static final int STATE_FAILED = 3;
+
+    private static final int SWITCH_TIMEOUT = 10 * 1000;
+    private static final int MAX_ATTEMPTS = 2;
+    private static final int MAX_RECORDED_ATTEMPTS = 16;
+
+    public interface Callback {
+        void onSwitchStateChanged(int state, int targetPhoneId);
+    }
+
+    private static DataSubSwitchController sInstance;
+
+    private final SubscriptionManager mSubscriptionManager;
+    private final TelephonyStateHub mTelephonyStateHub;
+    private final Handler mHandler = new Handler();
+    private final ArrayList<Callback> mCallbacks = new ArrayList<Callback>();
+    private final ArrayList<Attempt> mAttempts = new ArrayList<Attempt>();
+
+    private int mState = STATE_IDLE;
+    private int mTargetPhoneId = -1;
+    private int mTargetSubId;
+    private int mPreviousSubId;
+    private int mAttemptCount;
+    private boolean mRollingBack;
+    private long mAttemptStart;
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+
+    private final TelephonyStateHub.Callback mTelephonyCallback =
+            new TelephonyStateHub.SimpleCallback() {
+                @Override
+                public void onDefaultDataSubChanged(int subId) {
+                    checkConfirmed();
+                }
+
+                @Override
+                public void onDataConnectionStateChanged(int subId, int state) {
+                    checkConfirmed();
+                }
+            };
+
+    private DataSubSwitchController(Context context) {
+        mSubscriptionManager = SubscriptionManager.from(context);
+        mTelephonyStateHub = TelephonyStateHub.getInstance(context);
+    }
+
+    /**
+     * Must be called from the main thread.
+     */
+    public static DataSubSwitchController getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DataSubSwitchController(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    public void registerCallback(Callback callback) {
+        if (!mCallbacks.contains(callback)) {
+            mCallbacks.add(callback);
+        }
+    }
+
+    public void unregisterCallback(Callback callback) {
+        mCallbacks.remove(callback);
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public boolean isPending() {
+        return mState == STATE_PENDING;
+    }
+
+    /**
+     * The phone id the user asked for, or -1 if no switch was requested yet.
+     */
+    public int getTargetPhoneId() {
+        return mTargetPhoneId;
+    }
+
+    /**
+     * Returns false if the request was ignored, either because a switch is
+     * already in flight or the subscription is already the data one.
+     */
+    public boolean requestSwitch(SubscriptionInfo subInfoRecord) {
+        if (mState == STATE_PENDING) {
+            if (SetupWizardApp.DEBUG) Log.d(TAG, "Ignoring switch request, already pending");
+            return false;
+        }
+        final int phoneId = subInfoRecord.getSimSlotIndex();
+        if (phoneId == mSubscriptionManager.getDefaultDataPhoneId()) {
+            return false;
+        }
+        mTargetPhoneId = phoneId;
+        mTargetSubId = subInfoRecord.getSubscriptionId();
+        mPreviousSubId = SubscriptionManager.getDefaultDataSubId();
+        mAttemptCount = 0;
+        mRollingBack = false;
+        mTelephonyStateHub.registerCallback(mTelephonyCallback);
+        setState(STATE_PENDING);
+        startAttempt(mTargetSubId);
+        return true;
+    }
+
+    private void startAttempt(int subId) {
+        mAttemptCount++;
+        mAttemptStart = SystemClock.elapsedRealtime();
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mHandler.postDelayed(mTimeoutRunnable, SWITCH_TIMEOUT);
+        mSubscriptionManager.setDefaultDataSubId(subId);
+    }
+
+    private void checkConfirmed() {
+        if (mState != STATE_PENDING
+                || SubscriptionManager.getDefaultDataSubId() != mTargetSubId) {
+            return;
+        }
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        recordAttempt(true);
+        if (mRollingBack) {
+            finish(STATE_FAILED);
+        } else {
+            finish(STATE_CONFIRMED);
+        }
+    }
+
+    private void onTimeout() {
+        if (mState != STATE_PENDING) {
+            return;
+        }
+        recordAttempt(false);
+        if (!mRollingBack && mAttemptCount < MAX_ATTEMPTS) {
+            Log.w(TAG, "Data sub switch to phone " + mTargetPhoneId + " timed out, retrying");
+            startAttempt(mTargetSubId);
+        } else if (!mRollingBack && mPreviousSubId != mTargetSubId
+                && SubscriptionManager.isValidSubscriptionId(mPreviousSubId)) {
+            Log.w(TAG, "Data sub switch to phone " + mTargetPhoneId + " failed, rolling back");
+            mRollingBack = true;
+            mTargetSubId = mPreviousSubId;
+            startAttempt(mPreviousSubId);
+        } else {
+            Log.e(TAG, "Data sub switch failed, giving up");
+            finish(STATE_FAILED);
+        }
+    }
+
+    private void finish(int state) {
+        mTelephonyStateHub.unregisterCallback(mTelephonyCallback);
+        if (state == STATE_FAILED) {
+            // Whatever the modem ended up with is the choice we show
+            mTargetPhoneId = mSubscriptionManager.getDefaultDataPhoneId();
+        }
+        setState(state);
+    }
+
+    private void setState(int state) {
+        mState = state;
+        for (int i = 0; i < mCallbacks.size(); i++) {
+            mCallbacks.get(i).onSwitchStateChanged(state, mTargetPhoneId);
+        }
+    }
+
+    private void recordAttempt(boolean confirmed) {
+        final Attempt attempt = new Attempt(mTargetSubId, mAttemptCount, mRollingBack,
+                confirmed, SystemClock.elapsedRealtime() - mAttemptStart);
+        if (mAttempts.size() == MAX_RECORDED_ATTEMPTS) {
+            mAttempts.remove(0);
+        }
+        mAttempts.add(attempt);
+        if (SetupWizardApp.DEBUG) Log.d(TAG, attempt.toString());
+    }
+
+    public void dump(String prefix, PrintWriter pw) {
+        pw.print(prefix); pw.println("Data sub switch attempts:");
+        for (int i = 0; i < mAttempts.size(); i++) {
+            pw.print(prefix); pw.print("  "); pw.println(mAttempts.get(i));
+        }
+    }
+
+    private static class Attempt {
+
+        private final int mSubId;
+        private final int mAttempt;
+        private final boolean mRollback;
+        private final boolean mConfirmed;
+        private final long mLatency;
+
+        private Attempt(int subId, int attempt, boolean rollback, boolean confirmed,
+                long latency) {
+            mSubId = subId;
+            mAttempt = attempt;
+            mRollback = rollback;
+            mConfirmed = confirmed;
+            mLatency = latency;
+        }
+
+        @Override
+        public String toString() {
+            return "sub=" + mSubId + " attempt=" + mAttempt + (mRollback ? " rollback" : "")
+                    + (mConfirmed ? " confirmed" : " timed out") + " after " + mLatency + "ms";
+        }
+    }
+}
@@ -18,20 +18,29 @@ package com.mokee.setupwizard.util;
 
 import android.accessibilityservice.AccessibilityServiceInfo;
 import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ServiceInfo;
 import android.media.AudioManager;
 import android.media.Ringtone;
 import android.media.RingtoneManager;
+import android.os.AsyncTask;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
+import android.os.MessageQueue;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserManager;
 import android.provider.Settings;
 import android.speech.tts.TextToSpeech;
+import android.util.Log;
 import android.util.MathUtils;
 import android.view.IWindowManager;
 import android.view.MotionEvent;
@@ -39,37 +48,46 @@ import android.view.accessibility.AccessibilityManager;
 import android.view.accessibility.IAccessibilityManager;
 
 import com.android.internal.R;
+import com.mokee.setupwizard.SetupWizardApp;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 
 public class EnableAccessibilityController {
 
+    private static final String TAG = EnableAccessibilityController.class.getSimpleName();
+
     private static final int SPEAK_WARNING_DELAY_MILLIS = 5000;
     private static final int ENABLE_ACCESSIBILITY_DELAY_MILLIS = 12000;
+    // Leave the first page alone before warming up the speech engine
+    private static final int PREWARM_TTS_DELAY_MILLIS = 3000;
+
+    // Creates the speech engine up front, to measure cold start against
+    private static final String PROP_EAGER_TTS = "debug.setupwizard.eager_tts";
 
     public static final int MESSAGE_SPEAK_WARNING = 1;
     public static final int MESSAGE_SPEAK_ENABLE_CANCELED = 2;
     public static final int MESSAGE_ENABLE_ACCESSIBILITY = 3;
+    public static final int MESSAGE_PREWARM_TTS = 4;
 
     private final Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message message) {
             switch (message.what) {
                 case MESSAGE_SPEAK_WARNING: {
-                    String text = mContext.getString(R.string.continue_to_enable_accessibility);
-                    mTts.speak(text, TextToSpeech.QUEUE_FLUSH, null);
+                    speak(mContext.getString(R.string.continue_to_enable_accessibility));
                 } break;
                 case MESSAGE_SPEAK_ENABLE_CANCELED: {
-                    String text = mContext.getString(R.string.enable_accessibility_canceled);
-                    mTts.speak(text, TextToSpeech.QUEUE_FLUSH, null);
+                    speak(mContext.getString(R.string.enable_accessibility_canceled));
                 } break;
                 case MESSAGE_ENABLE_ACCESSIBILITY: {
                     enableAccessibility();
                     mTone.play();
-                    mTts.speak(mContext.getString(R.string.accessibility_enabled),
-                            TextToSpeech.QUEUE_FLUSH, null);
+                    speak(mContext.getString(R.string.accessibility_enabled));
+                } break;
+                case MESSAGE_PREWARM_TTS: {
+                    Looper.myQueue().addIdleHandler(mPrewarmIdleHandler);
                 } break;
             }
         }
@@ -82,13 +100,39 @@ public class EnableAccessibilityController {
             .Stub.asInterface(ServiceManager.getService("accessibility"));
 
 
+    private final MessageQueue.IdleHandler mPrewarmIdleHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            ensureTts();
+            return false;
+        }
+    };
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // A speaking service may have come or gone
+            rebuildServiceIndex();
+        }
+    };
+
     private final Context mContext;
     private final UserManager mUserManager;
-    private final TextToSpeech mTts;
     private final Ringtone mTone;
 
+    private volatile SpeakingServiceIndex mServiceIndex;
+    // Bumped on every package change so a stale build is dropped
+    private volatile int mServiceIndexGeneration;
+
     private final float mTouchSlop;
 
+    // Created on the first two finger touch or once the wizard is idle
+    private TextToSpeech mTts;
+    private boolean mTtsReady;
+    private long mTtsCreateTime;
+    // Latest text asked for before the engine was ready
+    private String mPendingSpeech;
+
     private boolean mDestroyed;
 
     private float mFirstPointerDownX;
@@ -99,20 +143,65 @@ public class EnableAccessibilityController {
     private static EnableAccessibilityController sInstance;
 
     private EnableAccessibilityController(Context context) {
+        final long start = SystemClock.elapsedRealtime();
         mContext = context;
         mUserManager = (UserManager) mContext.getSystemService(Context.USER_SERVICE);
-        mTts = new TextToSpeech(context, new TextToSpeech.OnInitListener() {
+        mTone = RingtoneManager.getRingtone(context, Settings.System.DEFAULT_NOTIFICATION_URI);
+        mTone.setStreamType(AudioManager.STREAM_MUSIC);
+        mTouchSlop = context.getResources().getDimensionPixelSize(
+                R.dimen.accessibility_touch_slop);
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiver(mPackageReceiver, packageFilter);
+        rebuildServiceIndex();
+        if (SystemProperties.getBoolean(PROP_EAGER_TTS, false)) {
+            ensureTts();
+        } else {
+            mHandler.sendEmptyMessageDelayed(MESSAGE_PREWARM_TTS, PREWARM_TTS_DELAY_MILLIS);
+        }
+        if (SetupWizardApp.DEBUG) {
+            Log.d(TAG, "Created in " + (SystemClock.elapsedRealtime() - start) + "ms, tts "
+                    + (mTts != null ? "eager" : "lazy"));
+        }
+    }
+
+    private void ensureTts() {
+        if (mTts != null || mDestroyed) {
+            return;
+        }
+        mHandler.removeMessages(MESSAGE_PREWARM_TTS);
+        mTtsCreateTime = SystemClock.elapsedRealtime();
+        mTts = new TextToSpeech(mContext, new TextToSpeech.OnInitListener() {
             @Override
             public void onInit(int status) {
+                if (SetupWizardApp.DEBUG) {
+                    Log.d(TAG, "Tts ready after "
+                            + (SystemClock.elapsedRealtime() - mTtsCreateTime) + "ms");
+                }
                 if (mDestroyed) {
-                    mTts.shutdown();
+                    // Already shut down
+                    return;
                 }
+                mTtsReady = status == TextToSpeech.SUCCESS;
+                if (mTtsReady && mPendingSpeech != null) {
+                    mTts.speak(mPendingSpeech, TextToSpeech.QUEUE_FLUSH, null);
+                }
+                mPendingSpeech = null;
             }
         });
-        mTone = RingtoneManager.getRingtone(context, Settings.System.DEFAULT_NOTIFICATION_URI);
-        mTone.setStreamType(AudioManager.STREAM_MUSIC);
-        mTouchSlop = context.getResources().getDimensionPixelSize(
-                R.dimen.accessibility_touch_slop);
+    }
+
+    private void speak(String text) {
+        if (mTtsReady) {
+            mTts.speak(text, TextToSpeech.QUEUE_FLUSH, null);
+        } else {
+            // Flushes like the engine would
+            mPendingSpeech = text;
+            ensureTts();
+        }
     }
 
     public static EnableAccessibilityController getInstance(Context context) {
@@ -134,26 +223,52 @@ public class EnableAccessibilityController {
 
         // If there is a speaking service
         // installed we are good to go, otherwise there is nothing to do.
-        return getInstalledSpeakingAccessibilityServices(context).isEmpty();
+        final SpeakingServiceIndex index = sInstance != null
+                ? sInstance.getServiceIndex() : SpeakingServiceIndex.build(context);
+        return index.mPreferred != null;
     }
 
-    private static List<AccessibilityServiceInfo> getInstalledSpeakingAccessibilityServices(
-            Context context) {
-        List<AccessibilityServiceInfo> services = new ArrayList<AccessibilityServiceInfo>();
-        services.addAll(AccessibilityManager.getInstance(context)
-                .getInstalledAccessibilityServiceList());
-        Iterator<AccessibilityServiceInfo> iterator = services.iterator();
-        while (iterator.hasNext()) {
-            AccessibilityServiceInfo service = iterator.next();
-            if ((service.feedbackType & AccessibilityServiceInfo.FEEDBACK_SPOKEN) == 0) {
-                iterator.remove();
+    private void rebuildServiceIndex() {
+        final int generation = ++mServiceIndexGeneration;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                SpeakingServiceIndex index = SpeakingServiceIndex.build(mContext);
+                if (generation == mServiceIndexGeneration) {
+                    mServiceIndex = index;
+                }
             }
+        });
+    }
+
+    private SpeakingServiceIndex getServiceIndex() {
+        SpeakingServiceIndex index = mServiceIndex;
+        if (index == null) {
+            // Not built yet, which should not happen seconds into a gesture
+            index = SpeakingServiceIndex.build(mContext);
+            mServiceIndex = index;
         }
-        return services;
+        return index;
     }
 
+    /**
+     * May be called from any thread, the engine and its state are only
+     * touched on the main thread.
+     */
     public void onDestroy() {
-        mDestroyed = true;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mDestroyed = true;
+                mContext.unregisterReceiver(mPackageReceiver);
+                // A prewarm idle handler still queued sees mDestroyed and backs off
+                mHandler.removeMessages(MESSAGE_PREWARM_TTS);
+                // Also when init failed or is still pending
+                if (mTts != null) {
+                    mTts.shutdown();
+                }
+            }
+        });
     }
 
     public boolean onInterceptTouchEvent(MotionEvent event) {
@@ -163,6 +278,8 @@ public class EnableAccessibilityController {
             mFirstPointerDownY = event.getY(0);
             mSecondPointerDownX = event.getX(1);
             mSecondPointerDownY = event.getY(1);
+            // The warning is due in a few seconds, bind to the engine now
+            ensureTts();
             mHandler.sendEmptyMessageDelayed(MESSAGE_SPEAK_WARNING,
                     SPEAK_WARNING_DELAY_MILLIS);
             mHandler.sendEmptyMessageDelayed(MESSAGE_ENABLE_ACCESSIBILITY,
@@ -219,9 +336,8 @@ public class EnableAccessibilityController {
     }
 
     private void enableAccessibility() {
-        List<AccessibilityServiceInfo> services = getInstalledSpeakingAccessibilityServices(
-                mContext);
-        if (services.isEmpty()) {
+        final SpeakingServiceIndex index = getServiceIndex();
+        if (index.mPreferred == null) {
             return;
         }
         boolean keyguardLocked = false;
@@ -233,22 +349,8 @@ public class EnableAccessibilityController {
 
         final boolean hasMoreThanOneUser = mUserManager.getUsers().size() > 1;
 
-        AccessibilityServiceInfo service = services.get(0);
-        boolean enableTouchExploration = (service.flags
-                & AccessibilityServiceInfo.FLAG_REQUEST_TOUCH_EXPLORATION_MODE) != 0;
-        // Try to find a service supporting explore by touch.
-        if (!enableTouchExploration) {
-            final int serviceCount = services.size();
-            for (int i = 1; i < serviceCount; i++) {
-                AccessibilityServiceInfo candidate = services.get(i);
-                if ((candidate.flags & AccessibilityServiceInfo
-                        .FLAG_REQUEST_TOUCH_EXPLORATION_MODE) != 0) {
-                    enableTouchExploration = true;
-                    service = candidate;
-                    break;
-                }
-            }
-        }
+        final AccessibilityServiceInfo service = index.mPreferred;
+        final boolean enableTouchExploration = index.mTouchExploration;
 
         ServiceInfo serviceInfo = service.getResolveInfo().serviceInfo;
         ComponentName componentName = new ComponentName(serviceInfo.packageName, serviceInfo.name);
@@ -284,4 +386,50 @@ public class EnableAccessibilityController {
             }
         }
     }
+
+    /**
+     * The installed speaking services and the one the gesture would enable:
+     * the first one asking for touch exploration, else the first one.
+     * Built off the main thread and replaced whenever packages change.
+     */
+    private static final class SpeakingServiceIndex {
+
+        private final List<AccessibilityServiceInfo> mServices;
+        private final AccessibilityServiceInfo mPreferred;
+        private final boolean mTouchExploration;
+
+        private SpeakingServiceIndex(List<AccessibilityServiceInfo> services,
+                AccessibilityServiceInfo preferred, boolean touchExploration) {
+            mServices = services;
+            mPreferred = preferred;
+            mTouchExploration = touchExploration;
+        }
+
+        private static SpeakingServiceIndex build(Context context) {
+            final long start = SystemClock.elapsedRealtime();
+            List<AccessibilityServiceInfo> installed = AccessibilityManager.getInstance(context)
+                    .getInstalledAccessibilityServiceList();
+            ArrayList<AccessibilityServiceInfo> services =
+                    new ArrayList<AccessibilityServiceInfo>();
+            AccessibilityServiceInfo touchExplorationService = null;
+            for (AccessibilityServiceInfo service : installed) {
+                if ((service.feedbackType & AccessibilityServiceInfo.FEEDBACK_SPOKEN) == 0) {
+                    continue;
+                }
+                services.add(service);
+                if (touchExplorationService == null && (service.flags
+                        & AccessibilityServiceInfo.FLAG_REQUEST_TOUCH_EXPLORATION_MODE) != 0) {
+                    touchExplorationService = service;
+                }
+            }
+            final AccessibilityServiceInfo preferred = touchExplorationService != null
+                    ? touchExplorationService : (services.isEmpty() ? null : services.get(0));
+            if (SetupWizardApp.DEBUG) {
+                Log.d(TAG, "Indexed " + services.size() + " speaking services in "
+                        + (SystemClock.elapsedRealtime() - start) + "ms");
+            }
+            return new SpeakingServiceIndex(Collections.unmodifiableList(services), preferred,
+                    touchExplorationService != null);
+        }
+    }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The last few hundred things that happened to the wizard: broadcasts,
+ * pages shown or hidden, navigation and activity results. Recording only
+ * claims a slot and fills in preallocated arrays, so it never blocks or
+ * allocates and can be left on in the field. The ring is printed by
+ * dumpsys activity and to the log when the process crashes.
+ */
+public final class EventRing {
+
+    private static final String TAG = EventRing.class.getSimpleName();
+
+    public static final int EVENT_BROADCAST = 1;
+    public static final int EVENT_HIDDEN = 2;
+    public static final int EVENT_NEXT = 3;
+    public static final int EVENT_PREVIOUS = 4;
+    public static final int EVENT_DEFERRED = 5;
+    public static final int EVENT_PAGE = 6;
+    public static final int EVENT_ACTIVITY_RESULT = 7;
+    public static final int EVENT_FINISH = 8;
+    // arg1 is 1 going forward, arg2 is 0 started, 1 passed, 2 handled, 3 cancelled
+    public static final int EVENT_ACTION = 9;
+
+    private static final String[] EVENT_NAMES = {
+            "?", "broadcast", "hidden", "next", "previous", "deferred", "page",
+            "activity_result", "finish", "action"
+    };
+
+    // Must be a power of two
+    private static final int CAPACITY = 256;
+    private static final int MASK = CAPACITY - 1;
+
+    private static final AtomicLong sNext = new AtomicLong();
+    // Sequence number of the event in each slot, set last so a reader can
+    // tell a complete record from one that is being overwritten
+    private static final AtomicLongArray sSequences = new AtomicLongArray(CAPACITY);
+    private static final long[] sTimes = new long[CAPACITY];
+    private static final int[] sTypes = new int[CAPACITY];
+    // Only constants and strings the caller already holds, never built here
+    private static final String[] sTags = new String[CAPACITY];
+    private static final int[] sArgs1 = new int[CAPACITY];
+    private static final int[] sArgs2 = new int[CAPACITY];
+
+    private static Thread.UncaughtExceptionHandler sDefaultHandler;
+
+    private EventRing() {}
+
+    public static void record(int type, String tag, int arg1, int arg2) {
+        final long sequence = sNext.getAndIncrement();
+        final int slot = (int) (sequence & MASK);
+        sSequences.set(slot, -1);
+        sTimes[slot] = SystemClock.elapsedRealtime();
+        sTypes[slot] = type;
+        sTags[slot] = tag;
+        sArgs1[slot] = arg1;
+        sArgs2[slot] = arg2;
+        sSequences.set(slot, sequence);
+    }
+
+    public static void record(int type, String tag) {
+        record(type, tag, 0, 0);
+    }
+
+    /**
+     * Logs the ring before handing the crash on to the default handler.
+     */
+    public static synchronized void installCrashHandler() {
+        if (sDefaultHandler != null) {
+            return;
+        }
+        sDefaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable ex) {
+                try {
+                    StringWriter writer = new StringWriter();
+                    dump("", new PrintWriter(writer));
+                    for (String line : writer.toString().split("\n")) {
+                        Log.e(TAG, line);
+                    }
+                } catch (Throwable t) {
+                    // Never get in the way of the real crash
+                }
+                if (sDefaultHandler != null) {
+                    sDefaultHandler.uncaughtException(thread, ex);
+                }
+            }
+        });
+    }
+
+    public static void dump(String prefix, PrintWriter pw) {
+        final long next = sNext.get();
+        final long first = Math.max(0, next - CAPACITY);
+        final long now = SystemClock.elapsedRealtime();
+        pw.print(prefix); pw.print("Recent events ("); pw.print(next); pw.println(" total):");
+        for (long sequence = first; sequence < next; sequence++) {
+            final int slot = (int) (sequence & MASK);
+            final long time = sTimes[slot];
+            final int type = sTypes[slot];
+            final String tag = sTags[slot];
+            final int arg1 = sArgs1[slot];
+            final int arg2 = sArgs2[slot];
+            if (sSequences.get(slot) != sequence) {
+                // Overwritten or still being written while we read it
+                continue;
+            }
+            pw.print(prefix); pw.print("  -"); pw.print(now - time); pw.print("ms ");
+            pw.print(type > 0 && type < EVENT_NAMES.length ? EVENT_NAMES[type] : "?");
+            pw.print(" "); pw.print(tag);
+            pw.print(" "); pw.print(arg1);
+            pw.print(" "); pw.println(arg2);
+        }
+    }
+}
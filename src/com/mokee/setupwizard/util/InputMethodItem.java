@@ -18,15 +18,19 @@ package com.mokee.setupwizard.util;
 
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.graphics.drawable.Drawable;
 import android.view.inputmethod.InputMethodInfo;
 
 public class InputMethodItem {
+    private final PackageManager mPackageManager;
+    private final InputMethodInfo mInfo;
     private String imLabel;
+    private Drawable imIcon;
     private String imPackage;
 
     public InputMethodItem(Context context, InputMethodInfo info) {
-        PackageManager pm = context.getPackageManager();
-        imLabel = info.loadLabel(pm).toString();
+        mPackageManager = context.getPackageManager();
+        mInfo = info;
         imPackage = getRealName(info);
     }
 
@@ -35,10 +39,34 @@ public class InputMethodItem {
         return packageName + "/" + info.getServiceName().replace(packageName, "");
     }
 
-    public String getImLabel() {
+    /**
+     * Loads the label on first use, as that means loading the IME's resources.
+     */
+    public synchronized String getImLabel() {
+        if (imLabel == null) {
+            imLabel = mInfo.loadLabel(mPackageManager).toString();
+        }
         return imLabel;
     }
 
+    public synchronized boolean isImLabelLoaded() {
+        return imLabel != null;
+    }
+
+    /**
+     * Loads the icon on first use, like {@link #getImLabel}.
+     */
+    public synchronized Drawable getImIcon() {
+        if (imIcon == null) {
+            imIcon = mInfo.loadIcon(mPackageManager);
+        }
+        return imIcon;
+    }
+
+    public synchronized boolean isImIconLoaded() {
+        return imIcon != null;
+    }
+
     public String getImPackage() {
         return imPackage;
     }
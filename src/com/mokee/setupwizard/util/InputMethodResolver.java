@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.util;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.inputmethod.InputMethodInfo;
+import android.view.inputmethod.InputMethodManager;
+
+import com.mokee.setupwizard.SetupWizardApp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Finds the input method to make default for Chinese locales. The lookup
+ * runs in the background and only looks at package names, so no IME
+ * resources are loaded unless a label is actually shown. The installed
+ * input methods are kept, along with whatever labels and icons have been
+ * loaded for them, until the locale changes.
+ */
+public class InputMethodResolver {
+
+    private static final String TAG = InputMethodResolver.class.getSimpleName();
+
+    private static final String[] PREFERRED_PACKAGES = {
+            "com.sohu.inputmethod.sogou",
+            "com.iflytek.inputmethod",
+            "com.google.android.apps.inputmethod.pinyin",
+            "com.baidu.input"
+    };
+
+    private static InputMethodResolver sInstance;
+
+    private final Context mContext;
+
+    private FutureTask<InputMethodItem> mTask;
+
+    private final Object mItemsLock = new Object();
+    private List<InputMethodItem> mItems;
+    private Locale mItemsLocale;
+
+    private InputMethodResolver(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    public static synchronized InputMethodResolver getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new InputMethodResolver(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts the lookup if it has not been started yet.
+     */
+    public synchronized void resolve() {
+        if (mTask != null) {
+            return;
+        }
+        mTask = new FutureTask<InputMethodItem>(new Callable<InputMethodItem>() {
+            @Override
+            public InputMethodItem call() {
+                return findPreferredInputMethod();
+            }
+        });
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(mTask);
+    }
+
+    /**
+     * Returns the first installed preferred input method, or null if there
+     * is none. Waits for the lookup, so must not be called on the main thread.
+     */
+    public InputMethodItem getPreferredInputMethod() {
+        final FutureTask<InputMethodItem> task;
+        synchronized (this) {
+            resolve();
+            task = mTask;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Unable to resolve input method", e);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the installed input methods. Labels and icons are not loaded
+     * until asked for. Must not be called on the main thread.
+     */
+    public List<InputMethodItem> getInputMethods() {
+        synchronized (mItemsLock) {
+            final Locale locale = mContext.getResources().getConfiguration().locale;
+            if (mItems == null || !locale.equals(mItemsLocale)) {
+                InputMethodManager manager = (InputMethodManager) mContext.getSystemService(
+                        Context.INPUT_METHOD_SERVICE);
+                List<InputMethodInfo> infoList = manager.getInputMethodList();
+                int total = infoList == null ? 0 : infoList.size();
+                ArrayList<InputMethodItem> items = new ArrayList<InputMethodItem>(total);
+                for (int index = 0; index < total; index++) {
+                    items.add(new InputMethodItem(mContext, infoList.get(index)));
+                }
+                mItems = Collections.unmodifiableList(items);
+                mItemsLocale = locale;
+            }
+            return mItems;
+        }
+    }
+
+    private InputMethodItem findPreferredInputMethod() {
+        final long start = SystemClock.elapsedRealtime();
+        List<InputMethodItem> items = getInputMethods();
+        InputMethodItem preferred = null;
+        for (InputMethodItem item : items) {
+            for (String packageName : PREFERRED_PACKAGES) {
+                if (item.getImPackage().startsWith(packageName)) {
+                    preferred = item;
+                    break;
+                }
+            }
+            if (preferred != null) {
+                break;
+            }
+        }
+        if (SetupWizardApp.DEBUG) {
+            Log.d(TAG, "Resolved " + (preferred != null ? preferred.getImPackage() : null)
+                    + " from " + items.size() + " input methods in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
+        }
+        return preferred;
+    }
+}
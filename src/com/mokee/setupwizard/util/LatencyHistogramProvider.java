@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.util;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serves {@link LatencyHistograms} to anyone holding the DUMP permission,
+ * also once the wizard itself is disabled, one row per metric:
+ *
+ * adb shell content query --uri content://com.mokee.setupwizard.latency
+ * adb shell content delete --uri content://com.mokee.setupwizard.latency
+ * adb shell dumpsys activity provider com.mokee.setupwizard/.util.LatencyHistogramProvider
+ */
+public class LatencyHistogramProvider extends ContentProvider {
+
+    public static final String COLUMN_METRIC = "metric";
+    public static final String COLUMN_COUNT = "count";
+    public static final String COLUMN_SUM = "sum_ms";
+    public static final String COLUMN_MAX = "max_ms";
+    // Followed by one column per bucket, see LatencyHistograms.getBucketName()
+
+    // Finished runs are reported as a row of their own
+    private static final String METRIC_RUNS = "runs";
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        final String[] columns = new String[4 + LatencyHistograms.BUCKET_COUNT];
+        columns[0] = COLUMN_METRIC;
+        columns[1] = COLUMN_COUNT;
+        columns[2] = COLUMN_SUM;
+        columns[3] = COLUMN_MAX;
+        for (int i = 0; i < LatencyHistograms.BUCKET_COUNT; i++) {
+            columns[4 + i] = LatencyHistograms.getBucketName(i);
+        }
+        final int[] runs = new int[1];
+        final LinkedHashMap<String, LatencyHistograms.Histogram> histograms =
+                LatencyHistograms.getInstance(getContext()).getAll(runs);
+        MatrixCursor cursor = new MatrixCursor(columns, histograms.size() + 1);
+        cursor.newRow().add(METRIC_RUNS).add(runs[0]);
+        for (Map.Entry<String, LatencyHistograms.Histogram> entry : histograms.entrySet()) {
+            final LatencyHistograms.Histogram histogram = entry.getValue();
+            MatrixCursor.RowBuilder row = cursor.newRow()
+                    .add(entry.getKey())
+                    .add(histogram.mCount)
+                    .add(histogram.mSum)
+                    .add(histogram.mMax);
+            for (int i = 0; i < LatencyHistograms.BUCKET_COUNT; i++) {
+                row.add(histogram.mCounts[i]);
+            }
+        }
+        return cursor;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Histograms are only recorded by the wizard");
+    }
+
+    /**
+     * Clears every histogram, to start a new series of runs.
+     */
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        LatencyHistograms.getInstance(getContext()).reset();
+        return 0;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Histograms are only recorded by the wizard");
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        LatencyHistograms.getInstance(getContext()).dump("", writer);
+    }
+}
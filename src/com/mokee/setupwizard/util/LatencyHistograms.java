@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.util;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Latency histograms with fixed buckets, added up across wizard runs so
+ * a device that is set up over and over shows trends rather than single
+ * traces. Recording only bumps a counter in memory; {@link #save} merges
+ * what this run recorded into a file in app-private storage, which only a
+ * factory reset clears. Printed by dumpsys and served by
+ * {@link LatencyHistogramProvider}.
+ */
+public final class LatencyHistograms {
+
+    private static final String TAG = LatencyHistograms.class.getSimpleName();
+
+    // Page transitions, from the request to the new page on screen, by page key
+    public static final String METRIC_PAGE = "page:";
+    // Each finish runnable, by the name it was added with
+    public static final String METRIC_FINISH_STEP = "finish:";
+    public static final String METRIC_FINISH = "finish";
+    public static final String METRIC_CAPTIVE_PORTAL = "captive_portal";
+    public static final String METRIC_RADIO_READY = "radio_ready";
+
+    // Upper bounds of the buckets in ms, the last bucket holds the rest
+    private static final long[] BOUNDS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000
+    };
+    public static final int BUCKET_COUNT = BOUNDS.length + 1;
+
+    private static final String FILE_NAME = "latency_histograms";
+    private static final int VERSION = 1;
+    // Guards against page keys or class names blowing up the file
+    private static final int MAX_METRICS = 128;
+
+    private static LatencyHistograms sInstance;
+
+    // Held for file I/O, and taken before the instance lock when both are
+    // needed. Recording only takes the instance lock, so it never waits on disk.
+    private final Object mFileLock = new Object();
+    private final AtomicFile mFile;
+    // Recorded since the last save
+    private LinkedHashMap<String, Histogram> mPending = new LinkedHashMap<String, Histogram>();
+    private int mPendingRuns;
+
+    public static class Histogram {
+        public final int[] mCounts = new int[BUCKET_COUNT];
+        public long mCount;
+        public long mSum;
+        public long mMax;
+
+        private void add(Histogram other) {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                mCounts[i] += other.mCounts[i];
+            }
+            mCount += other.mCount;
+            mSum += other.mSum;
+            mMax = Math.max(mMax, other.mMax);
+        }
+    }
+
+    private LatencyHistograms(Context context) {
+        mFile = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    public static synchronized LatencyHistograms getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LatencyHistograms(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Any thread. Never touches storage.
+     */
+    public synchronized void record(String metric, long millis) {
+        Histogram histogram = mPending.get(metric);
+        if (histogram == null) {
+            if (mPending.size() >= MAX_METRICS) {
+                return;
+            }
+            histogram = new Histogram();
+            mPending.put(metric, histogram);
+        }
+        int bucket = 0;
+        while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+            bucket++;
+        }
+        histogram.mCounts[bucket]++;
+        histogram.mCount++;
+        histogram.mSum += millis;
+        histogram.mMax = Math.max(histogram.mMax, millis);
+    }
+
+    /**
+     * Counts a run of the wizard that made it to the end.
+     */
+    public synchronized void finishRun() {
+        mPendingRuns++;
+    }
+
+    /**
+     * Merges what was recorded since the last save into the file. Does
+     * disk I/O, don't call on the main thread.
+     */
+    public void save() {
+        synchronized (mFileLock) {
+            final LinkedHashMap<String, Histogram> pending;
+            final int pendingRuns;
+            synchronized (this) {
+                if (mPending.isEmpty() && mPendingRuns == 0) {
+                    return;
+                }
+                pending = mPending;
+                pendingRuns = mPendingRuns;
+                mPending = new LinkedHashMap<String, Histogram>();
+                mPendingRuns = 0;
+            }
+            final int[] runs = new int[1];
+            LinkedHashMap<String, Histogram> histograms = read(runs);
+            merge(histograms, pending);
+            FileOutputStream out = null;
+            try {
+                out = mFile.startWrite();
+                DataOutputStream data = new DataOutputStream(out);
+                data.writeInt(VERSION);
+                data.writeInt(runs[0] + pendingRuns);
+                data.writeInt(histograms.size());
+                for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+                    final Histogram histogram = entry.getValue();
+                    data.writeUTF(entry.getKey());
+                    data.writeLong(histogram.mCount);
+                    data.writeLong(histogram.mSum);
+                    data.writeLong(histogram.mMax);
+                    for (int i = 0; i < BUCKET_COUNT; i++) {
+                        data.writeInt(histogram.mCounts[i]);
+                    }
+                }
+                data.flush();
+                mFile.finishWrite(out);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to save histograms", e);
+                mFile.failWrite(out);
+                // Keep them for the next save
+                synchronized (this) {
+                    merge(mPending, pending);
+                    mPendingRuns += pendingRuns;
+                }
+            }
+        }
+    }
+
+    /**
+     * Everything recorded so far, saved or not. runs gets the number of
+     * finished runs in its first element. Reads the file.
+     */
+    public LinkedHashMap<String, Histogram> getAll(int[] runs) {
+        synchronized (mFileLock) {
+            LinkedHashMap<String, Histogram> histograms = read(runs);
+            synchronized (this) {
+                merge(histograms, mPending);
+                runs[0] += mPendingRuns;
+            }
+            return histograms;
+        }
+    }
+
+    public void reset() {
+        synchronized (mFileLock) {
+            synchronized (this) {
+                mPending.clear();
+                mPendingRuns = 0;
+            }
+            mFile.delete();
+        }
+    }
+
+    public void dump(String prefix, PrintWriter pw) {
+        final int[] runs = new int[1];
+        final LinkedHashMap<String, Histogram> histograms = getAll(runs);
+        pw.print(prefix); pw.print("Latency histograms ("); pw.print(runs[0]);
+        pw.println(" runs finished, ms):");
+        pw.print(prefix); pw.print(String.format("  %-32s %6s %7s %7s ", "", "n", "mean", "max"));
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            pw.print(String.format(" %8s", getBucketName(i)));
+        }
+        pw.println();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            final Histogram histogram = entry.getValue();
+            pw.print(prefix);
+            pw.print(String.format("  %-32s %6d %7d %7d ", entry.getKey(), histogram.mCount,
+                    histogram.mCount > 0 ? histogram.mSum / histogram.mCount : 0,
+                    histogram.mMax));
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                pw.print(String.format(" %8d", histogram.mCounts[i]));
+            }
+            pw.println();
+        }
+    }
+
+    /**
+     * "le_" and the upper bound of the bucket in ms, or "le_inf" for the
+     * last one.
+     */
+    public static String getBucketName(int bucket) {
+        return bucket < BOUNDS.length ? "le_" + BOUNDS[bucket] : "le_inf";
+    }
+
+    private static void merge(LinkedHashMap<String, Histogram> into,
+            LinkedHashMap<String, Histogram> from) {
+        for (Map.Entry<String, Histogram> entry : from.entrySet()) {
+            Histogram histogram = into.get(entry.getKey());
+            if (histogram == null) {
+                if (into.size() >= MAX_METRICS) {
+                    continue;
+                }
+                histogram = new Histogram();
+                into.put(entry.getKey(), histogram);
+            }
+            histogram.add(entry.getValue());
+        }
+    }
+
+    private LinkedHashMap<String, Histogram> read(int[] runs) {
+        final LinkedHashMap<String, Histogram> histograms =
+                new LinkedHashMap<String, Histogram>();
+        runs[0] = 0;
+        FileInputStream in = null;
+        try {
+            in = mFile.openRead();
+            DataInputStream data = new DataInputStream(in);
+            if (data.readInt() != VERSION) {
+                Log.w(TAG, "Dropping histograms from another version");
+                return histograms;
+            }
+            final int savedRuns = data.readInt();
+            final int count = Math.min(data.readInt(), MAX_METRICS);
+            for (int i = 0; i < count; i++) {
+                final String metric = data.readUTF();
+                final Histogram histogram = new Histogram();
+                histogram.mCount = data.readLong();
+                histogram.mSum = data.readLong();
+                histogram.mMax = data.readLong();
+                for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                    histogram.mCounts[bucket] = data.readInt();
+                }
+                histograms.put(metric, histogram);
+            }
+            runs[0] = savedRuns;
+        } catch (FileNotFoundException e) {
+            // Nothing saved yet
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable histograms", e);
+            histograms.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        return histograms;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.util;
+
+import android.os.SystemClock;
+import android.os.SystemProperties;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records how long each step of a page navigation takes, from the button
+ * tap to the new page reporting itself loaded, and how long the user
+ * stays on each page. Off unless debug.setupwizard.timings is set when the
+ * process starts; callers check {@link #ENABLED} first so nothing is done
+ * otherwise. Results are printed by dumpsys activity.
+ */
+public final class PageTimings {
+
+    private static final String PROP_ENABLED = "debug.setupwizard.timings";
+
+    public static final boolean ENABLED = SystemProperties.getBoolean(PROP_ENABLED, false);
+
+    public static final int PHASE_TAP = 0;
+    public static final int PHASE_NAVIGATE = 1;
+    public static final int PHASE_LOAD = 2;
+    public static final int PHASE_CREATE_VIEW = 3;
+    public static final int PHASE_INITIALIZED = 4;
+    public static final int PHASE_RESUMED = 5;
+    private static final int PHASE_LOADED = 6;
+    private static final int PHASE_COUNT = 7;
+
+    private static final String[] PHASE_NAMES = {
+            "tap", "onNextPage", "doLoadAction", "onCreateView", "initializePage",
+            "onResume", "onPageLoaded"
+    };
+
+    // Percentiles are taken over the most recent samples only
+    private static final int MAX_SAMPLES = 64;
+
+    private static final long[] sMarks = new long[PHASE_COUNT];
+    private static boolean sInNavigation;
+    private static final LinkedHashMap<String, PageStats> sStats =
+            new LinkedHashMap<String, PageStats>();
+    private static String sDwellKey;
+    private static long sDwellStart;
+
+    private PageTimings() {}
+
+    /**
+     * Marks a step of the navigation in progress. A tap or a navigation
+     * without a tap starts a new one.
+     */
+    public static synchronized void mark(int phase) {
+        if (phase == PHASE_TAP || (phase == PHASE_NAVIGATE && !sInNavigation)) {
+            Arrays.fill(sMarks, 0);
+            sInNavigation = true;
+        }
+        if (sInNavigation) {
+            sMarks[phase] = SystemClock.elapsedRealtimeNanos();
+        }
+    }
+
+    /**
+     * Ends the navigation in progress, if any, and starts the dwell time
+     * of the page when it differs from the last one loaded.
+     */
+    public static synchronized void pageLoaded(String key) {
+        final long now = SystemClock.elapsedRealtimeNanos();
+        if (sInNavigation) {
+            sInNavigation = false;
+            sMarks[PHASE_LOADED] = now;
+            PageStats stats = getStats(key);
+            long start = 0;
+            for (int phase = 0; phase < PHASE_COUNT; phase++) {
+                if (sMarks[phase] == 0) {
+                    continue;
+                }
+                if (start == 0) {
+                    start = sMarks[phase];
+                }
+                stats.mPhases[phase].add(sMarks[phase] - start);
+            }
+        }
+        if (!key.equals(sDwellKey)) {
+            if (sDwellKey != null) {
+                getStats(sDwellKey).mDwell.add(now - sDwellStart);
+            }
+            sDwellKey = key;
+            sDwellStart = now;
+        }
+    }
+
+    public static synchronized void dump(String prefix, PrintWriter pw) {
+        if (!ENABLED) {
+            pw.print(prefix); pw.print("Page timings: off, set ");
+            pw.print(PROP_ENABLED); pw.println(" to true and restart");
+            return;
+        }
+        pw.print(prefix); pw.println("Page timings (ms since navigation start, p50/p90/p99/max):");
+        for (Map.Entry<String, PageStats> entry : sStats.entrySet()) {
+            PageStats stats = entry.getValue();
+            pw.print(prefix); pw.print("  "); pw.println(entry.getKey());
+            for (int phase = 0; phase < PHASE_COUNT; phase++) {
+                stats.mPhases[phase].dump(prefix + "    ", PHASE_NAMES[phase], pw);
+            }
+            stats.mDwell.dump(prefix + "    ", "dwell", pw);
+        }
+    }
+
+    private static PageStats getStats(String key) {
+        PageStats stats = sStats.get(key);
+        if (stats == null) {
+            stats = new PageStats();
+            sStats.put(key, stats);
+        }
+        return stats;
+    }
+
+    private static class PageStats {
+
+        private final Samples[] mPhases = new Samples[PHASE_COUNT];
+        private final Samples mDwell = new Samples();
+
+        private PageStats() {
+            for (int phase = 0; phase < PHASE_COUNT; phase++) {
+                mPhases[phase] = new Samples();
+            }
+        }
+    }
+
+    private static class Samples {
+
+        private final long[] mValues = new long[MAX_SAMPLES];
+        private int mCount;
+
+        private void add(long nanos) {
+            mValues[mCount % MAX_SAMPLES] = nanos;
+            mCount++;
+        }
+
+        private void dump(String prefix, String name, PrintWriter pw) {
+            if (mCount == 0) {
+                return;
+            }
+            final int size = Math.min(mCount, MAX_SAMPLES);
+            long[] sorted = Arrays.copyOf(mValues, size);
+            Arrays.sort(sorted);
+            pw.print(prefix); pw.print(String.format("%-16s n=%-4d", name, mCount));
+            pw.print(formatMillis(percentile(sorted, 50))); pw.print(" ");
+            pw.print(formatMillis(percentile(sorted, 90))); pw.print(" ");
+            pw.print(formatMillis(percentile(sorted, 99))); pw.print(" ");
+            pw.println(formatMillis(sorted[size - 1]));
+        }
+
+        private static long percentile(long[] sorted, int percentile) {
+            final int rank = (sorted.length * percentile + 99) / 100;
+            return sorted[Math.max(0, rank - 1)];
+        }
+
+        private static String formatMillis(long nanos) {
+            return String.format("%8.1f", nanos / 1000000f);
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.util;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.mokee.setupwizard.SetupWizardApp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only record of the wizard's progress in app private storage, so a
+ * killed process or a reboot resumes on the page the user was on.
+ *
+ * At every page boundary the page data is diffed against what was already
+ * journaled and only the changes plus the new current page are appended,
+ * followed by a single fsync. Once enough records pile up the journal is
+ * rewritten as a snapshot. Records are framed with a length and checksum,
+ * a torn tail is ignored on read.
+ *
+ * Only boolean, int, long and String page values are journaled.
+ */
+public class ProgressJournal {
+
+    private static final String TAG = ProgressJournal.class.getSimpleName();
+
+    private static final String FILE_NAME = "progress.journal";
+
+    private static final int MAX_RECORDS = 128;
+
+    private static final byte RECORD_PAGE = 1;
+    private static final byte RECORD_VALUE = 2;
+    private static final byte RECORD_REMOVE = 3;
+
+    private static final byte TYPE_BOOLEAN = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_STRING = 4;
+
+    /**
+     * What was read back on restore.
+     */
+    public static class Snapshot {
+        public final String mCurrentPageKey;
+        // Page key to page data
+        public final Bundle mData;
+        public final long mReadTimeMs;
+
+        private Snapshot(String currentPageKey, Bundle data, long readTimeMs) {
+            mCurrentPageKey = currentPageKey;
+            mData = data;
+            mReadTimeMs = readTimeMs;
+        }
+    }
+
+    private final AtomicFile mFile;
+    // All disk access happens here, in order
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    // What the journal on disk says, only touched on the main thread
+    private final HashMap<String, HashMap<String, Object>> mJournaled =
+            new HashMap<String, HashMap<String, Object>>();
+    private String mCurrentPageKey;
+    private int mRecordCount;
+    // Appending after a damaged tail would hide the new records
+    private boolean mNeedsCompaction;
+
+    public ProgressJournal(Context context) {
+        mFile = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * Reads the whole journal in one go. Returns null if there is nothing to
+     * resume from.
+     */
+    public Snapshot restore() {
+        final long start = SystemClock.elapsedRealtime();
+        final byte[] bytes;
+        try {
+            bytes = mFile.readFully();
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read journal", e);
+            return null;
+        }
+        mJournaled.clear();
+        mCurrentPageKey = null;
+        mRecordCount = 0;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        CRC32 crc = new CRC32();
+        try {
+            while (in.available() >= 8) {
+                final int length = in.readInt();
+                final long checksum = in.readInt() & 0xffffffffL;
+                if (length <= 0 || length > in.available()) {
+                    Log.w(TAG, "Ignoring torn journal tail");
+                    mNeedsCompaction = true;
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if (crc.getValue() != checksum) {
+                    Log.w(TAG, "Ignoring corrupt journal tail");
+                    mNeedsCompaction = true;
+                    break;
+                }
+                applyRecord(new DataInputStream(new ByteArrayInputStream(payload)));
+                mRecordCount++;
+            }
+            mNeedsCompaction |= in.available() > 0;
+        } catch (IOException e) {
+            Log.w(TAG, "Stopped reading journal", e);
+            mNeedsCompaction = true;
+        }
+        if (mCurrentPageKey == null) {
+            return null;
+        }
+        Bundle data = new Bundle();
+        for (Map.Entry<String, HashMap<String, Object>> page : mJournaled.entrySet()) {
+            data.putBundle(page.getKey(), toBundle(page.getValue()));
+        }
+        return new Snapshot(mCurrentPageKey, data,
+                SystemClock.elapsedRealtime() - start);
+    }
+
+    /**
+     * Journals a page boundary. Must be called on the main thread.
+     */
+    public void recordPage(String currentPageKey, Map<String, Bundle> pageData) {
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        int count = 0;
+        try {
+            for (Map.Entry<String, Bundle> page : pageData.entrySet()) {
+                count += diffPage(page.getKey(), page.getValue(), records);
+            }
+            if (!currentPageKey.equals(mCurrentPageKey)) {
+                mCurrentPageKey = currentPageKey;
+                writeRecord(records, pageRecord(currentPageKey));
+                count++;
+            }
+        } catch (IOException e) {
+            // Only writing to memory
+            return;
+        }
+        if (count == 0 && !mNeedsCompaction) {
+            return;
+        }
+        mRecordCount += count;
+        if (mRecordCount > MAX_RECORDS || mNeedsCompaction) {
+            compact();
+        } else {
+            final byte[] bytes = records.toByteArray();
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    append(bytes);
+                }
+            });
+        }
+    }
+
+    /**
+     * Forgets all progress, waiting until it is gone from disk. Called once
+     * setup completes, not on the main thread.
+     */
+    public void delete() {
+        try {
+            mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    mFile.delete();
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Unable to delete journal", e);
+        }
+    }
+
+    private int diffPage(String pageKey, Bundle bundle, ByteArrayOutputStream records)
+            throws IOException {
+        HashMap<String, Object> journaled = mJournaled.get(pageKey);
+        if (journaled == null) {
+            journaled = new HashMap<String, Object>();
+            mJournaled.put(pageKey, journaled);
+        }
+        int count = 0;
+        for (String key : bundle.keySet()) {
+            final Object value = bundle.get(key);
+            if (!isSupported(value) || value.equals(journaled.get(key))) {
+                continue;
+            }
+            journaled.put(key, value);
+            writeRecord(records, valueRecord(pageKey, key, value));
+            count++;
+        }
+        Iterator<String> it = journaled.keySet().iterator();
+        while (it.hasNext()) {
+            final String key = it.next();
+            if (!bundle.containsKey(key)) {
+                it.remove();
+                writeRecord(records, removeRecord(pageKey, key));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void compact() {
+        final ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        int count = 0;
+        try {
+            for (Map.Entry<String, HashMap<String, Object>> page : mJournaled.entrySet()) {
+                for (Map.Entry<String, Object> value : page.getValue().entrySet()) {
+                    writeRecord(snapshot,
+                            valueRecord(page.getKey(), value.getKey(), value.getValue()));
+                    count++;
+                }
+            }
+            if (mCurrentPageKey != null) {
+                writeRecord(snapshot, pageRecord(mCurrentPageKey));
+                count++;
+            }
+        } catch (IOException e) {
+            return;
+        }
+        if (SetupWizardApp.DEBUG) {
+            Log.d(TAG, "Compacting " + mRecordCount + " records into " + count);
+        }
+        mRecordCount = count;
+        mNeedsCompaction = false;
+        final byte[] bytes = snapshot.toByteArray();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                FileOutputStream out = null;
+                try {
+                    out = mFile.startWrite();
+                    out.write(bytes);
+                    mFile.finishWrite(out);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to compact journal", e);
+                    if (out != null) {
+                        mFile.failWrite(out);
+                    }
+                }
+            }
+        });
+    }
+
+    // Runs on the executor
+    private void append(byte[] bytes) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(mFile.getBaseFile(), true);
+            out.write(bytes);
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to append to journal", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private void applyRecord(DataInputStream in) throws IOException {
+        final byte record = in.readByte();
+        if (record == RECORD_PAGE) {
+            mCurrentPageKey = in.readUTF();
+            return;
+        }
+        final String pageKey = in.readUTF();
+        final String key = in.readUTF();
+        HashMap<String, Object> values = mJournaled.get(pageKey);
+        if (values == null) {
+            values = new HashMap<String, Object>();
+            mJournaled.put(pageKey, values);
+        }
+        if (record == RECORD_REMOVE) {
+            values.remove(key);
+            return;
+        }
+        switch (in.readByte()) {
+            case TYPE_BOOLEAN:
+                values.put(key, in.readBoolean());
+                break;
+            case TYPE_INT:
+                values.put(key, in.readInt());
+                break;
+            case TYPE_LONG:
+                values.put(key, in.readLong());
+                break;
+            case TYPE_STRING:
+                values.put(key, in.readUTF());
+                break;
+        }
+    }
+
+    private static boolean isSupported(Object value) {
+        return value instanceof Boolean || value instanceof Integer
+                || value instanceof Long || value instanceof String;
+    }
+
+    private static Bundle toBundle(HashMap<String, Object> values) {
+        Bundle bundle = new Bundle();
+        for (Map.Entry<String, Object> value : values.entrySet()) {
+            final Object v = value.getValue();
+            if (v instanceof Boolean) {
+                bundle.putBoolean(value.getKey(), (Boolean) v);
+            } else if (v instanceof Integer) {
+                bundle.putInt(value.getKey(), (Integer) v);
+            } else if (v instanceof Long) {
+                bundle.putLong(value.getKey(), (Long) v);
+            } else if (v instanceof String) {
+                bundle.putString(value.getKey(), (String) v);
+            }
+        }
+        return bundle;
+    }
+
+    private static byte[] pageRecord(String pageKey) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_PAGE);
+        out.writeUTF(pageKey);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] removeRecord(String pageKey, String key) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_REMOVE);
+        out.writeUTF(pageKey);
+        out.writeUTF(key);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] valueRecord(String pageKey, String key, Object value)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_VALUE);
+        out.writeUTF(pageKey);
+        out.writeUTF(key);
+        if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else {
+            out.writeByte(TYPE_STRING);
+            out.writeUTF((String) value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeRecord(ByteArrayOutputStream records, byte[] payload)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        DataOutputStream out = new DataOutputStream(records);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+    }
+}
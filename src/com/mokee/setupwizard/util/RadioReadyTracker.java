@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.telephony.ServiceState;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import com.mokee.setupwizard.SetupWizardApp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Watches the service state of every subscription from process start and
+ * decides once when the radio is ready, so the telephony pages do not have
+ * to wait for it themselves.
+ *
+ * The timeout is derived from how long the radio took to come up earlier in
+ * this setup, falling back to {@link SetupWizardApp#RADIO_READY_TIMEOUT}.
+ * What is learned lives in the app's preferences, which a factory reset
+ * wipes, so it only shortens the wait when the process restarts before
+ * setup is done; the first start after a reset always uses the default.
+ */
+public class RadioReadyTracker {
+
+    private static final String TAG = RadioReadyTracker.class.getSimpleName();
+
+    private static final String PREFS_NAME = "radio_ready";
+    private static final String KEY_AVERAGE_READY_MS = "average_ready_ms";
+
+    private static final int MIN_TIMEOUT = 3 * 1000;
+    private static final int MAX_TIMEOUT = 20 * 1000;
+
+    public interface Callback {
+        void onRadioReady();
+    }
+
+    private static RadioReadyTracker sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler();
+    private final ArrayList<Callback> mCallbacks = new ArrayList<Callback>();
+
+    private TelephonyStateHub mTelephonyStateHub;
+
+    private boolean mStarted = false;
+    private boolean mIsRadioReady = false;
+    private long mStartTime;
+    private long mTimeout;
+
+    private final Runnable mRadioTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // If we timeout out waiting for the radio, Oh well.
+            Log.w(TAG, "Radio not ready after " + mTimeout + "ms, giving up");
+            onReady(false);
+        }
+    };
+
+    private final TelephonyStateHub.Callback mTelephonyCallback =
+            new TelephonyStateHub.SimpleCallback() {
+                @Override
+                public void onServiceStateChanged(int subId, ServiceState state) {
+                    if (isRadioOn(state)) {
+                        onReady(true);
+                    }
+                }
+            };
+
+    private RadioReadyTracker(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Must be called from the main thread.
+     */
+    public static RadioReadyTracker getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new RadioReadyTracker(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mStartTime = SystemClock.elapsedRealtime();
+        if (!SetupWizardUtils.hasTelephony(mContext)) {
+            onReady(false);
+            return;
+        }
+        List<SubscriptionInfo> subInfoRecords =
+                SubscriptionManager.from(mContext).getActiveSubscriptionInfoList();
+        if (subInfoRecords == null || subInfoRecords.isEmpty()) {
+            // Nothing to wait for without a sim
+            onReady(false);
+            return;
+        }
+        // A restarted process may find the radio already up, which says
+        // nothing about how long it takes to come up.
+        if (isAnySubscriptionReady(subInfoRecords)) {
+            onReady(false);
+            return;
+        }
+        mTelephonyStateHub = TelephonyStateHub.getInstance(mContext);
+        mTelephonyStateHub.registerCallback(mTelephonyCallback);
+        mTimeout = getAdaptiveTimeout();
+        mHandler.postDelayed(mRadioTimeoutRunnable, mTimeout);
+        if (SetupWizardApp.DEBUG) Log.d(TAG, "Waiting up to " + mTimeout + "ms for the radio");
+    }
+
+    public boolean isRadioReady() {
+        return mIsRadioReady;
+    }
+
+    /**
+     * Calls back right away if the radio is already ready, otherwise once it is.
+     */
+    public void addCallback(Callback callback) {
+        if (mIsRadioReady) {
+            callback.onRadioReady();
+        } else if (!mCallbacks.contains(callback)) {
+            mCallbacks.add(callback);
+        }
+    }
+
+    public void removeCallback(Callback callback) {
+        mCallbacks.remove(callback);
+    }
+
+    private boolean isAnySubscriptionReady(List<SubscriptionInfo> subInfoRecords) {
+        // Asked directly, the hub only learns the state once its listeners
+        // get their first callback.
+        TelephonyManager tm = TelephonyManager.from(mContext);
+        for (SubscriptionInfo subInfoRecord : subInfoRecords) {
+            if (isRadioOn(tm.getServiceStateForSubscriber(subInfoRecord.getSubscriptionId()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isRadioOn(ServiceState state) {
+        return state != null && state.getState() != ServiceState.STATE_POWER_OFF;
+    }
+
+    private void onReady(boolean observed) {
+        if (mIsRadioReady) {
+            return;
+        }
+        mIsRadioReady = true;
+        mHandler.removeCallbacks(mRadioTimeoutRunnable);
+        if (mTelephonyStateHub != null) {
+            mTelephonyStateHub.unregisterCallback(mTelephonyCallback);
+        }
+        if (observed) {
+            final long timeToReady = SystemClock.elapsedRealtime() - mStartTime;
+            recordTimeToReady(timeToReady);
+            LatencyHistograms.getInstance(mContext).record(
+                    LatencyHistograms.METRIC_RADIO_READY, timeToReady);
+        }
+        ArrayList<Callback> callbacks = new ArrayList<Callback>(mCallbacks);
+        mCallbacks.clear();
+        for (int i = 0; i < callbacks.size(); i++) {
+            callbacks.get(i).onRadioReady();
+        }
+    }
+
+    private long getAdaptiveTimeout() {
+        final long average = getPrefs().getLong(KEY_AVERAGE_READY_MS, -1);
+        if (average < 0) {
+            return SetupWizardApp.RADIO_READY_TIMEOUT;
+        }
+        // Leave room for a slower than usual start
+        return Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, average * 2));
+    }
+
+    private void recordTimeToReady(long timeToReady) {
+        SharedPreferences prefs = getPrefs();
+        final long average = prefs.getLong(KEY_AVERAGE_READY_MS, -1);
+        final long updated = average < 0 ? timeToReady : (average * 3 + timeToReady) / 4;
+        prefs.edit().putLong(KEY_AVERAGE_READY_MS, updated).apply();
+        if (SetupWizardApp.DEBUG) {
+            Log.d(TAG, "Radio ready after " + timeToReady + "ms, average now " + updated + "ms");
+        }
+    }
+
+    private SharedPreferences getPrefs() {
+        return mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.util;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.provider.Settings;
+import android.util.Log;
+
+import com.mokee.setupwizard.SetupWizardApp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Watches individual settings for the pages that care about them. Each
+ * setting gets its own {@link ContentObserver}, registered while at least
+ * one listener wants it, and its latest value is cached so readers do not
+ * have to hit the settings provider again.
+ *
+ * Listeners are called on a background looper after the cache has been
+ * refreshed. Use {@link Settings.Secure#getUriFor}, {@link Settings.Global#getUriFor}
+ * or {@link Settings.System#getUriFor} to name a setting.
+ */
+public class SettingsWatcher {
+
+    private static final String TAG = SettingsWatcher.class.getSimpleName();
+
+    public interface Listener {
+        void onSettingChanged(Uri uri);
+    }
+
+    private static SettingsWatcher sInstance;
+
+    private final ContentResolver mContentResolver;
+
+    // Guarded by this
+    private final HashMap<Uri, Watch> mWatches = new HashMap<Uri, Watch>();
+    private final HashMap<Uri, Value> mValues = new HashMap<Uri, Value>();
+    private int mRefCount;
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    private SettingsWatcher(Context context) {
+        mContentResolver = context.getContentResolver();
+    }
+
+    public static synchronized SettingsWatcher getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SettingsWatcher(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts calling back the listener when the setting changes. Every call
+     * must be balanced by {@link #unwatch}.
+     */
+    public synchronized void watch(Uri uri, Listener listener) {
+        if (mRefCount++ == 0) {
+            mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+        Watch watch = mWatches.get(uri);
+        if (watch == null) {
+            watch = new Watch(uri);
+            mWatches.put(uri, watch);
+            mContentResolver.registerContentObserver(uri, false, watch);
+            if (SetupWizardApp.DEBUG) Log.d(TAG, "Watching " + uri);
+        }
+        watch.mListeners.add(listener);
+    }
+
+    public synchronized void unwatch(Uri uri, Listener listener) {
+        Watch watch = mWatches.get(uri);
+        if (watch == null || !watch.mListeners.remove(listener)) {
+            return;
+        }
+        if (watch.mListeners.isEmpty()) {
+            mContentResolver.unregisterContentObserver(watch);
+            mWatches.remove(uri);
+            // Nobody will tell us when it goes stale
+            mValues.remove(uri);
+            if (SetupWizardApp.DEBUG) Log.d(TAG, "Stopped watching " + uri);
+        }
+        if (--mRefCount == 0) {
+            mThread.quit();
+            mThread = null;
+            mHandler = null;
+        }
+    }
+
+    public String getString(Uri uri) {
+        return getValue(uri).mString;
+    }
+
+    public int getInt(Uri uri, int def) {
+        Value value = getValue(uri);
+        synchronized (value) {
+            if (!value.mIntParsed) {
+                value.mIntParsed = true;
+                try {
+                    value.mInt = value.mString != null
+                            ? Integer.parseInt(value.mString) : null;
+                } catch (NumberFormatException e) {
+                    value.mInt = null;
+                }
+            }
+            return value.mInt != null ? value.mInt : def;
+        }
+    }
+
+    private Value getValue(Uri uri) {
+        synchronized (this) {
+            Value value = mValues.get(uri);
+            if (value != null) {
+                return value;
+            }
+        }
+        Value value = new Value(readSetting(uri));
+        synchronized (this) {
+            // Only settings we are told about can be kept around
+            if (mWatches.containsKey(uri) && !mValues.containsKey(uri)) {
+                mValues.put(uri, value);
+            }
+        }
+        return value;
+    }
+
+    private String readSetting(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 2) {
+            Log.w(TAG, "Not a setting " + uri);
+            return null;
+        }
+        final String table = segments.get(0);
+        final String name = segments.get(1);
+        if ("secure".equals(table)) {
+            return Settings.Secure.getString(mContentResolver, name);
+        } else if ("global".equals(table)) {
+            return Settings.Global.getString(mContentResolver, name);
+        } else if ("system".equals(table)) {
+            return Settings.System.getString(mContentResolver, name);
+        }
+        Log.w(TAG, "Unknown settings table " + uri);
+        return null;
+    }
+
+    private void onChange(Uri uri) {
+        final Value value = new Value(readSetting(uri));
+        final ArrayList<Listener> listeners;
+        synchronized (this) {
+            Watch watch = mWatches.get(uri);
+            if (watch == null) {
+                return;
+            }
+            mValues.put(uri, value);
+            listeners = new ArrayList<Listener>(watch.mListeners);
+        }
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).onSettingChanged(uri);
+        }
+    }
+
+    private class Watch extends ContentObserver {
+
+        private final Uri mUri;
+        private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+
+        private Watch(Uri uri) {
+            super(mHandler);
+            mUri = uri;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            SettingsWatcher.this.onChange(mUri);
+        }
+    }
+
+    private static class Value {
+
+        private final String mString;
+        private boolean mIntParsed;
+        private Integer mInt;
+
+        private Value(String string) {
+            mString = string;
+        }
+    }
+}
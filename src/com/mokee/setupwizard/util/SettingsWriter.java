@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.util;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.mokee.setupwizard.SetupWizardApp;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies settings writes made from page toggles on a background thread.
+ * Writes are keyed, and a write replaces any pending write with the same
+ * key, so only the last value the user picked within the coalesce window
+ * reaches the provider. Pages are expected to show the intended value
+ * right away and check {@link #hasPendingWrite} before trusting what they
+ * read back.
+ */
+public class SettingsWriter {
+
+    private static final String TAG = SettingsWriter.class.getSimpleName();
+
+    private static final int COALESCE_WINDOW_MS = 300;
+
+    private static SettingsWriter sInstance;
+
+    private final Handler mHandler;
+
+    // Guarded by this, in the order they were first queued
+    private final LinkedHashMap<String, Runnable> mPending = new LinkedHashMap<String, Runnable>();
+    private String mRunningKey;
+    private int mCoalescedCount;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private SettingsWriter() {
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    public static synchronized SettingsWriter getInstance() {
+        if (sInstance == null) {
+            sInstance = new SettingsWriter();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Queues a write, replacing a pending write with the same key.
+     */
+    public synchronized void write(String key, Runnable write) {
+        if (mPending.put(key, write) != null) {
+            mCoalescedCount++;
+            if (SetupWizardApp.DEBUG) Log.d(TAG, "Coalesced write to " + key);
+        }
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.postDelayed(mFlushRunnable, COALESCE_WINDOW_MS);
+    }
+
+    public synchronized boolean hasPendingWrite(String key) {
+        return mPending.containsKey(key) || key.equals(mRunningKey);
+    }
+
+    /**
+     * Applies every pending write and waits for them. Returns false if they
+     * did not complete in time. Must not be called on the main thread.
+     */
+    public boolean flush(long timeoutMs) {
+        if (Looper.myLooper() == mHandler.getLooper()) {
+            drain();
+            return true;
+        }
+        final CountDownLatch latch = new CountDownLatch(1);
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+                latch.countDown();
+            }
+        });
+        try {
+            if (latch.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                if (SetupWizardApp.DEBUG) {
+                    Log.d(TAG, "Flushed, " + mCoalescedCount + " writes coalesced");
+                }
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.e(TAG, "Settings writes not confirmed after " + timeoutMs + "ms");
+        return false;
+    }
+
+    private void drain() {
+        while (true) {
+            final Runnable write;
+            synchronized (this) {
+                mRunningKey = null;
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                mRunningKey = mPending.keySet().iterator().next();
+                write = mPending.remove(mRunningKey);
+            }
+            try {
+                write.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to write " + mRunningKey, e);
+            }
+        }
+    }
+}
@@ -27,13 +27,11 @@ import android.net.NetworkInfo;
 import android.net.wifi.WifiManager;
 import android.os.UserHandle;
 import android.os.UserManager;
-import android.telephony.ServiceState;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
 import com.android.internal.widget.LockPatternUtils;
-import com.mokee.setupwizard.SetupWizardApp;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesUtil;
@@ -125,19 +123,6 @@ public class SetupWizardUtils {
         return true;
     }
 
-    public static boolean isRadioReady(Context context, ServiceState state) {
-        final SetupWizardApp setupWizardApp = (SetupWizardApp)context.getApplicationContext();
-        if (setupWizardApp.isRadioReady()) {
-            return true;
-        } else {
-            final boolean ready = state != null
-                    && state.getState() != ServiceState.STATE_POWER_OFF;
-            setupWizardApp.setRadioReady(ready);
-            return ready;
-        }
-
-    }
-
     public static boolean isGuestUser(Context context) {
         UserManager userManager = (UserManager) context.getSystemService(Context.USER_SERVICE);
         return userManager.isGuestUser();
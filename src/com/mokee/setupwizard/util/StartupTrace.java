@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.util;
+
+import android.os.SystemClock;
+import android.os.Trace;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Marks the phases of a cold start, from the process being forked to the
+ * first page being drawn and ready for input. Each phase is a systrace
+ * section, and the first launch is also kept for dumpsys activity along
+ * with time to first frame and time to interactive, both measured from
+ * process start. Main thread only.
+ */
+public final class StartupTrace {
+
+    private static final String TAG = StartupTrace.class.getSimpleName();
+
+    private static final int MAX_SECTIONS = 32;
+
+    // Fallback anchor if the process start time cannot be read
+    private static final long sClassLoaded = SystemClock.elapsedRealtime();
+
+    private static final String[] sNames = new String[MAX_SECTIONS];
+    private static final int[] sDepths = new int[MAX_SECTIONS];
+    private static final long[] sStarts = new long[MAX_SECTIONS];
+    private static final long[] sDurations = new long[MAX_SECTIONS];
+    private static int sCount;
+
+    // Index of each open section, or -1 when it was not kept
+    private static final int[] sOpen = new int[MAX_SECTIONS];
+    private static int sDepth;
+
+    private static long sProcessStart = -1;
+    private static long sFirstFrame = -1;
+    private static long sInteractive = -1;
+    private static boolean sWaitingForInteractive;
+
+    private StartupTrace() {}
+
+    public static void begin(String name) {
+        Trace.beginSection(name);
+        int index = -1;
+        if (sInteractive < 0 && sCount < MAX_SECTIONS) {
+            index = sCount++;
+            sNames[index] = name;
+            sDepths[index] = sDepth;
+            sStarts[index] = SystemClock.elapsedRealtime();
+        }
+        if (sDepth < MAX_SECTIONS) {
+            sOpen[sDepth] = index;
+        }
+        sDepth++;
+    }
+
+    public static void end() {
+        sDepth--;
+        if (sDepth < MAX_SECTIONS) {
+            final int index = sOpen[sDepth];
+            if (index >= 0) {
+                sDurations[index] = SystemClock.elapsedRealtime() - sStarts[index];
+            }
+        }
+        Trace.endSection();
+    }
+
+    /**
+     * Records the first frame drawn in the given window.
+     */
+    public static void watchFirstFrame(View decorView) {
+        if (sFirstFrame >= 0) {
+            return;
+        }
+        final ViewTreeObserver observer = decorView.getViewTreeObserver();
+        observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                observer.removeOnPreDrawListener(this);
+                if (sFirstFrame < 0) {
+                    sFirstFrame = SystemClock.elapsedRealtime();
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Called when a page resumes. The first time, the start is over once
+     * that page has been drawn.
+     */
+    public static void pageResumed(View pageView) {
+        if (sInteractive >= 0 || sWaitingForInteractive || pageView == null) {
+            return;
+        }
+        sWaitingForInteractive = true;
+        final ViewTreeObserver observer = pageView.getViewTreeObserver();
+        observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                observer.removeOnPreDrawListener(this);
+                sInteractive = SystemClock.elapsedRealtime();
+                final long processStart = getProcessStart();
+                Log.i(TAG, "Cold start: first frame " + (sFirstFrame - processStart)
+                        + "ms, interactive " + (sInteractive - processStart) + "ms");
+                return true;
+            }
+        });
+    }
+
+    public static void dump(String prefix, PrintWriter pw) {
+        final long processStart = getProcessStart();
+        pw.print(prefix); pw.println("Cold start (ms since process start):");
+        pw.print(prefix); pw.print("  first frame=");
+        pw.print(sFirstFrame >= 0 ? sFirstFrame - processStart : -1);
+        pw.print(" interactive=");
+        pw.println(sInteractive >= 0 ? sInteractive - processStart : -1);
+        for (int i = 0; i < sCount; i++) {
+            pw.print(prefix); pw.print("  ");
+            for (int depth = 0; depth < sDepths[i]; depth++) {
+                pw.print("  ");
+            }
+            pw.print(sNames[i]); pw.print(" at "); pw.print(sStarts[i] - processStart);
+            pw.print(" took "); pw.println(sDurations[i]);
+        }
+    }
+
+    /**
+     * Start of this process on the elapsedRealtime clock, from the start
+     * time the kernel reports for it. The kernel clock may not count time
+     * asleep, which does not matter this early after boot.
+     */
+    private static long getProcessStart() {
+        if (sProcessStart >= 0) {
+            return sProcessStart;
+        }
+        sProcessStart = sClassLoaded;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/self/stat"));
+            final String stat = reader.readLine();
+            // Fields after the command name, which may itself hold spaces;
+            // start time is field 22 of the whole line
+            final String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            final long startTicks = Long.parseLong(fields[19]);
+            final long ticksPerSecond = Os.sysconf(OsConstants._SC_CLK_TCK);
+            sProcessStart = startTicks * 1000 / ticksPerSecond;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Unable to read process start time", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        return sProcessStart;
+    }
+}
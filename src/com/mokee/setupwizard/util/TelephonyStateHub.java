@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2015 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.setupwizard.util;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.telephony.PhoneStateListener;
+import android.telephony.ServiceState;
+import android.telephony.SignalStrength;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.internal.telephony.TelephonyIntents;
+import com.mokee.setupwizard.SetupWizardApp;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps a single {@link PhoneStateListener} per active subscription for the
+ * lifetime of the wizard and caches the latest telephony state, so pages can
+ * subscribe and unsubscribe on resume/pause without touching the radio
+ * registrations. All calls and callbacks happen on the main thread.
+ */
+public class TelephonyStateHub {
+
+    private static final String TAG = TelephonyStateHub.class.getSimpleName();
+
+    private static final int LISTEN_EVENTS = PhoneStateListener.LISTEN_SERVICE_STATE
+            | PhoneStateListener.LISTEN_SIGNAL_STRENGTHS
+            | PhoneStateListener.LISTEN_DATA_CONNECTION_STATE;
+
+    public interface Callback {
+        void onServiceStateChanged(int subId, ServiceState state);
+        void onSignalStrengthsChanged(int subId, SignalStrength signalStrength);
+        void onDataConnectionStateChanged(int subId, int state);
+        void onDefaultDataSubChanged(int subId);
+    }
+
+    public static class SimpleCallback implements Callback {
+        @Override
+        public void onServiceStateChanged(int subId, ServiceState state) {}
+
+        @Override
+        public void onSignalStrengthsChanged(int subId, SignalStrength signalStrength) {}
+
+        @Override
+        public void onDataConnectionStateChanged(int subId, int state) {}
+
+        @Override
+        public void onDefaultDataSubChanged(int subId) {}
+    }
+
+    private static TelephonyStateHub sInstance;
+
+    private final Context mContext;
+    private final TelephonyManager mPhone;
+    private final SubscriptionManager mSubscriptionManager;
+
+    // Callbacks unregister themselves while being called, iterate over a snapshot
+    private final CopyOnWriteArrayList<Callback> mCallbacks =
+            new CopyOnWriteArrayList<Callback>();
+    private final SparseArray<PhoneStateListener> mPhoneStateListeners =
+            new SparseArray<PhoneStateListener>();
+    private final SparseArray<ServiceState> mServiceStates = new SparseArray<ServiceState>();
+    private final SparseArray<SignalStrength> mSignalStrengths =
+            new SparseArray<SignalStrength>();
+    private final SparseIntArray mDataStates = new SparseIntArray();
+
+    private int mDefaultDataSubId;
+    private boolean mStarted = false;
+
+    private final SubscriptionManager.OnSubscriptionsChangedListener mSubscriptionsChangedListener =
+            new SubscriptionManager.OnSubscriptionsChangedListener() {
+                @Override
+                public void onSubscriptionsChanged() {
+                    updateSubscriptions();
+                }
+            };
+
+    private final BroadcastReceiver mDefaultDataSubReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            updateDefaultDataSub();
+        }
+    };
+
+    private TelephonyStateHub(Context context) {
+        mContext = context;
+        mPhone = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+        mSubscriptionManager = SubscriptionManager.from(context);
+        mDefaultDataSubId = SubscriptionManager.getDefaultDataSubId();
+    }
+
+    /**
+     * Must be called from the main thread, the listeners are bound to its looper.
+     */
+    public static TelephonyStateHub getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TelephonyStateHub(context.getApplicationContext());
+            sInstance.start();
+        }
+        return sInstance;
+    }
+
+    private void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mSubscriptionManager.addOnSubscriptionsChangedListener(mSubscriptionsChangedListener);
+        mContext.registerReceiver(mDefaultDataSubReceiver,
+                new IntentFilter(TelephonyIntents.ACTION_DEFAULT_DATA_SUBSCRIPTION_CHANGED));
+        updateSubscriptions();
+    }
+
+    /**
+     * Drops every telephony registration. Called once setup is complete.
+     */
+    public void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        mSubscriptionManager.removeOnSubscriptionsChangedListener(mSubscriptionsChangedListener);
+        mContext.unregisterReceiver(mDefaultDataSubReceiver);
+        for (int i = 0; i < mPhoneStateListeners.size(); i++) {
+            mPhone.listen(mPhoneStateListeners.valueAt(i), PhoneStateListener.LISTEN_NONE);
+        }
+        mPhoneStateListeners.clear();
+        mServiceStates.clear();
+        mSignalStrengths.clear();
+        mDataStates.clear();
+        mCallbacks.clear();
+        if (sInstance == this) {
+            sInstance = null;
+        }
+    }
+
+    public void registerCallback(Callback callback) {
+        if (!mCallbacks.contains(callback)) {
+            mCallbacks.add(callback);
+        }
+    }
+
+    public void unregisterCallback(Callback callback) {
+        mCallbacks.remove(callback);
+    }
+
+    public ServiceState getServiceState(int subId) {
+        return mServiceStates.get(subId);
+    }
+
+    public SignalStrength getSignalStrength(int subId) {
+        return mSignalStrengths.get(subId);
+    }
+
+    public int getDataConnectionState(int subId) {
+        return mDataStates.get(subId, TelephonyManager.DATA_UNKNOWN);
+    }
+
+    public int getDefaultDataSubId() {
+        return mDefaultDataSubId;
+    }
+
+    private void updateSubscriptions() {
+        if (!mStarted) {
+            return;
+        }
+        List<SubscriptionInfo> subInfoRecords =
+                mSubscriptionManager.getActiveSubscriptionInfoList();
+        SparseArray<PhoneStateListener> active = new SparseArray<PhoneStateListener>();
+        if (subInfoRecords != null) {
+            for (SubscriptionInfo subInfoRecord : subInfoRecords) {
+                final int subId = subInfoRecord.getSubscriptionId();
+                PhoneStateListener listener = mPhoneStateListeners.get(subId);
+                if (listener == null) {
+                    listener = createPhoneStateListener(subId);
+                    mPhone.listen(listener, LISTEN_EVENTS);
+                    if (SetupWizardApp.DEBUG) Log.d(TAG, "Listening to sub " + subId);
+                }
+                active.put(subId, listener);
+            }
+        }
+        for (int i = 0; i < mPhoneStateListeners.size(); i++) {
+            final int subId = mPhoneStateListeners.keyAt(i);
+            if (active.get(subId) == null) {
+                mPhone.listen(mPhoneStateListeners.valueAt(i), PhoneStateListener.LISTEN_NONE);
+                mServiceStates.remove(subId);
+                mSignalStrengths.remove(subId);
+                mDataStates.delete(subId);
+                if (SetupWizardApp.DEBUG) Log.d(TAG, "Stopped listening to sub " + subId);
+            }
+        }
+        mPhoneStateListeners.clear();
+        for (int i = 0; i < active.size(); i++) {
+            mPhoneStateListeners.put(active.keyAt(i), active.valueAt(i));
+        }
+        updateDefaultDataSub();
+    }
+
+    private void updateDefaultDataSub() {
+        final int subId = SubscriptionManager.getDefaultDataSubId();
+        if (subId != mDefaultDataSubId) {
+            mDefaultDataSubId = subId;
+            for (Callback callback : mCallbacks) {
+                callback.onDefaultDataSubChanged(subId);
+            }
+        }
+    }
+
+    private PhoneStateListener createPhoneStateListener(final int subId) {
+        return new PhoneStateListener(subId) {
+
+            @Override
+            public void onSignalStrengthsChanged(SignalStrength signalStrength) {
+                SignalStrength old = mSignalStrengths.get(subId);
+                if (signalStrength != null && signalStrength.equals(old)) {
+                    return;
+                }
+                mSignalStrengths.put(subId, signalStrength);
+                for (Callback callback : mCallbacks) {
+                    callback.onSignalStrengthsChanged(subId, signalStrength);
+                }
+            }
+
+            @Override
+            public void onServiceStateChanged(ServiceState state) {
+                ServiceState old = mServiceStates.get(subId);
+                if (state != null && state.equals(old)) {
+                    return;
+                }
+                mServiceStates.put(subId, state);
+                for (Callback callback : mCallbacks) {
+                    callback.onServiceStateChanged(subId, state);
+                }
+            }
+
+            @Override
+            public void onDataConnectionStateChanged(int state) {
+                if (mDataStates.indexOfKey(subId) >= 0 && mDataStates.get(subId) == state) {
+                    return;
+                }
+                mDataStates.put(subId, state);
+                for (Callback callback : mCallbacks) {
+                    callback.onDataConnectionStateChanged(subId, state);
+                }
+            }
+        };
+    }
+}